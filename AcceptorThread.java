@@ -0,0 +1,67 @@
+/**
+ * AcceptorThread accepts client connections on a listening server socket channel
+ * of some listener and hands them to Nakov Forward Server for forwarding. Nakov Forward Server
+ * can run several acceptor threads, each with its own listening socket bound on
+ * the same port (SO_REUSEPORT), so the kernel spreads incoming connections
+ * between them.
+ */
+ 
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+ 
+public class AcceptorThread extends Thread
+{
+    static final long MIN_ACCEPT_BACKOFF_MS = 10;
+    static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+    private ForwardListener mListener = null;
+    private ServerSocketChannel mServerChannel = null;
+ 
+    /**
+     * Creates an acceptor thread for given bound server socket channel of given listener
+     */
+    public AcceptorThread(NakovForwardServer aNakovForwardServer, ForwardListener aListener,
+            ServerSocketChannel aServerChannel, int aAcceptorIndex)
+    {
+        super("Acceptor-" + aAcceptorIndex);
+        mNakovForwardServer = aNakovForwardServer;
+        mListener = aListener;
+        mServerChannel = aServerChannel;
+    }
+ 
+    /**
+     * Accepts client connections and passes them to the server until stopped or
+     * the listening socket is closed. Does nothing else, so the accept rate is
+     * not limited by logging or by starting the forwarding. A failed accept (e.g.
+     * when the file descriptors are exhausted) is retried after a back off that
+     * doubles while the accepts keep failing.
+     */
+    public void run()
+    {
+        long backoffMs = 0;
+        while (!interrupted()) {
+           SocketChannel clientChannel;
+           try {
+               clientChannel = mServerChannel.accept();
+           } catch (ClosedChannelException cce) {
+               return;  // The listening socket is closed or the thread is interrupted
+           } catch (IOException ioe) {
+               backoffMs = Math.min(Math.max(2 * backoffMs, MIN_ACCEPT_BACKOFF_MS), MAX_ACCEPT_BACKOFF_MS);
+               System.out.println("Accepting a client failed in " + getName() + ": " + ioe.toString() +
+                   ". Retrying in " + backoffMs + " ms.");
+               try {
+                   sleep(backoffMs);
+               } catch (InterruptedException ie) {
+                   return;
+               }
+               continue;
+           }
+           backoffMs = 0;
+           mNakovForwardServer.handleAcceptedClient(mListener, clientChannel);
+        }
+    }
+ 
+}
@@ -0,0 +1,63 @@
+/**
+ * AdaptiveBufferSizer chooses the read buffer size of a forwarding direction
+ * based on its recent reads. When reads consistently fill the whole buffer (bulk
+ * transfer), the size is doubled so fewer read/write calls are needed. When reads
+ * consistently use a small part of it (chatty, interactive traffic), the size is
+ * halved so idle connections hold little memory. The size always stays between
+ * the configured minimal and maximal buffer sizes.
+ */
+ 
+public class AdaptiveBufferSizer
+{
+    private static final int FULL_READS_TO_GROW = 2;
+    private static final int SMALL_READS_TO_SHRINK = 4;
+ 
+    private int mMinSize;
+    private int mMaxSize;
+    private int mSize;
+    private int mFullReads = 0;
+    private int mSmallReads = 0;
+ 
+    /**
+     * Creates a buffer sizer starting with the minimal size
+     */
+    public AdaptiveBufferSizer(int aMinSize, int aMaxSize)
+    {
+        mMinSize = aMinSize;
+        mMaxSize = Math.max(aMinSize, aMaxSize);
+        mSize = aMinSize;
+    }
+ 
+    /**
+     * @return the buffer size that should be used for the next read
+     */
+    public int getSize()
+    {
+        return mSize;
+    }
+ 
+    /**
+     * Records the result of a read into a buffer with given capacity and adapts
+     * the buffer size
+     */
+    public void record(int aBytesRead, int aBufferCapacity)
+    {
+        if (aBytesRead >= aBufferCapacity) {
+           mSmallReads = 0;
+           if (++mFullReads >= FULL_READS_TO_GROW && mSize < mMaxSize) {
+               mSize = Math.min(mMaxSize, mSize * 2);
+               mFullReads = 0;
+           }
+        } else if (aBytesRead < aBufferCapacity / 4) {
+           mFullReads = 0;
+           if (++mSmallReads >= SMALL_READS_TO_SHRINK && mSize > mMinSize) {
+               mSize = Math.max(mMinSize, mSize / 2);
+               mSmallReads = 0;
+           }
+        } else {
+           mFullReads = 0;
+           mSmallReads = 0;
+        }
+    }
+ 
+}
@@ -0,0 +1,292 @@
+/**
+ * AdminServer is an HTTP endpoint for inspecting and controlling a running Nakov
+ * Forward Server without restarting it. It listens on localhost only and serves
+ * the following requests:
+ *     GET  /servers                        - the state of the listeners and their servers (JSON)
+ *     POST /servers/weight?server=host:port&weight=N - changes the weight of a server
+ *     POST /servers/drain?server=host:port  - the server gets no new clients, its connections continue
+ *     POST /servers/enable?server=host:port - the drained server gets clients again
+ *     POST /healthcheck                    - checks all the servers immediately
+ *     GET  /metrics                        - the metrics in Prometheus text format
+ * The server requests can be limited to a single listener by adding the parameter
+ * listener=name (the name of the listener in the settings). The changes are not
+ * written in the configuration file, so the weights are reset when the settings
+ * are reloaded. Requests from web pages are refused (status 403), so a page open
+ * in a browser on the same machine can not control the server: the Host header
+ * must name the loopback address (localhost, 127.0.0.1 or [::1], optionally with
+ * the admin port), which blocks DNS rebinding, and requests with Origin header
+ * (sent by the browsers for cross-origin requests) are not allowed.
+ */
+ 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+ 
+public class AdminServer implements HttpHandler
+{
+    private static final String[] LOOPBACK_HOST_NAMES = {"localhost", "127.0.0.1", "[::1]"};
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+    private HttpServer mHttpServer = null;
+    private int mPort;
+ 
+    /**
+     * Creates an admin endpoint bound on given port of the loopback address
+     */
+    public AdminServer(NakovForwardServer aNakovForwardServer, int aPort)
+    throws IOException
+    {
+        mNakovForwardServer = aNakovForwardServer;
+        mPort = aPort;
+        mHttpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), aPort), 0);
+        mHttpServer.createContext("/", this);
+    }
+ 
+    /**
+     * Starts serving the admin requests in a background thread
+     */
+    public void start()
+    {
+        mHttpServer.start();
+    }
+ 
+    /**
+     * Handles an admin request and sends the response
+     */
+    public void handle(HttpExchange aExchange)
+    throws IOException
+    {
+        try {
+           String path = aExchange.getRequestURI().getPath();
+           String method = aExchange.getRequestMethod();
+           HashMap<String, String> params = parseQuery(aExchange.getRequestURI().getRawQuery());
+           if (!isLocalRequest(aExchange)) {
+               sendResponse(aExchange, 403, "{\"error\": \"Only local requests are allowed\"}");
+           } else if (path.equals("/servers")) {
+               if (!method.equals("GET"))
+                   sendResponse(aExchange, 405, "{\"error\": \"Use GET\"}");
+               else
+                   sendResponse(aExchange, 200, getServersState());
+           } else if (path.equals("/servers/weight") || path.equals("/servers/drain") ||
+                   path.equals("/servers/enable")) {
+               if (!method.equals("POST"))
+                   sendResponse(aExchange, 405, "{\"error\": \"Use POST\"}");
+               else
+                   changeServers(aExchange, path.substring("/servers/".length()), params);
+           } else if (path.equals("/metrics")) {
+               if (!method.equals("GET"))
+                   sendResponse(aExchange, 405, "{\"error\": \"Use GET\"}");
+               else
+                   sendResponse(aExchange, 200, "text/plain; version=0.0.4; charset=utf-8",
+                       MetricsExporter.export(mNakovForwardServer));
+           } else if (path.equals("/healthcheck")) {
+               if (!method.equals("POST")) {
+                   sendResponse(aExchange, 405, "{\"error\": \"Use POST\"}");
+               } else {
+                   mNakovForwardServer.checkAllServersNow();
+                   mNakovForwardServer.log("Admin: health check of all the servers requested.");
+                   sendResponse(aExchange, 202, "{\"status\": \"Health check started\"}");
+               }
+           } else {
+               sendResponse(aExchange, 404, "{\"error\": \"Unknown request\"}");
+           }
+        } finally {
+           aExchange.close();
+        }
+    }
+ 
+    /**
+     * @return true if given request is not sent from a web page: it has no Origin
+     * header and its Host header names the loopback address (with the admin port
+     * or without port)
+     */
+    private boolean isLocalRequest(HttpExchange aExchange)
+    {
+        if (aExchange.getRequestHeaders().containsKey("Origin"))
+           return false;
+        String host = aExchange.getRequestHeaders().getFirst("Host");
+        if (host == null)
+           return false;
+        host = host.trim().toLowerCase();
+        for (int i=0; i<LOOPBACK_HOST_NAMES.length; i++) {
+           if (host.equals(LOOPBACK_HOST_NAMES[i]) || host.equals(LOOPBACK_HOST_NAMES[i] + ":" + mPort))
+               return true;
+        }
+        return false;
+    }
+ 
+    /**
+     * Changes the weight of the servers specified by given parameters or drains
+     * or enables them (depending on given action) and sends the changed servers
+     */
+    private void changeServers(HttpExchange aExchange, String aAction, HashMap<String, String> aParams)
+    throws IOException
+    {
+        String server = aParams.get("server");
+        int colonIndex = (server == null) ? -1 : server.lastIndexOf(':');
+        int port;
+        try {
+           port = Integer.parseInt(server.substring(colonIndex + 1));
+        } catch (Exception e) {
+           sendResponse(aExchange, 400, "{\"error\": \"Specify server=host:port\"}");
+           return;
+        }
+        String host = server.substring(0, Math.max(0, colonIndex));
+        int weight = 0;
+        if (aAction.equals("weight")) {
+           try {
+               weight = Integer.parseInt(aParams.get("weight"));
+           } catch (Exception e) {
+               weight = -1;
+           }
+           if (weight < 0) {
+               sendResponse(aExchange, 400, "{\"error\": \"Specify weight=N (0 or more)\"}");
+               return;
+           }
+        }
+ 
+        String listenerName = aParams.get("listener");
+        StringBuffer changed = new StringBuffer();
+        ForwardListener[] listeners = mNakovForwardServer.getListeners();
+        for (int i=0; i<listeners.length; i++) {
+           if (listenerName != null && !listenerName.equals(listeners[i].getSettingsName()))
+               continue;
+           NakovForwardServer.ServerDescription[] servers = listeners[i].getServersList();
+           for (int j=0; j<servers.length; j++) {
+               if (servers[j].port != port || !servers[j].host.equals(host))
+                   continue;
+               if (aAction.equals("weight")) {
+                   servers[j].weight = weight;
+               } else if (aAction.equals("drain")) {
+                   servers[j].isDrained = true;
+                   if (servers[j].connectionPool != null)
+                       servers[j].connectionPool.clear();
+               } else {
+                   servers[j].isDrained = false;
+                   listeners[i].slotReleased();  // Waiting clients can use the server
+               }
+               if (changed.length() > 0)
+                   changed.append(",\n");
+               appendServerState(changed, listeners[i], servers[j]);
+           }
+        }
+        if (changed.length() == 0) {
+           sendResponse(aExchange, 404, "{\"error\": \"No such server\"}");
+           return;
+        }
+        mNakovForwardServer.log("Admin: " + (aAction.equals("weight") ? "weight " + weight + " set to" : aAction) +
+           " server " + host + ":" + port + (listenerName != null ? " of listener " + listenerName : "") + ".");
+        sendResponse(aExchange, 200, "{\"servers\": [\n" + changed + "\n]}");
+    }
+ 
+    /**
+     * @return the state of all the listeners and their servers in JSON format
+     */
+    private String getServersState()
+    {
+        StringBuffer state = new StringBuffer("{\"listeners\": [\n");
+        ForwardListener[] listeners = mNakovForwardServer.getListeners();
+        for (int i=0; i<listeners.length; i++) {
+           ForwardListener listener = listeners[i];
+           AdmissionQueue admissionQueue = listener.getAdmissionQueue();
+           state.append("  {\"name\": \"").append(escape(listener.getSettingsName())).append('"');
+           state.append(", \"port\": ").append(listener.getListeningPort());
+           state.append(", \"loadBalancing\": \"").append(listener.getLoadBalancer().getAlgorithmName()).append('"');
+           state.append(", \"waitingClients\": ").append(admissionQueue != null ? admissionQueue.size() : 0);
+           state.append(", \"servers\": [\n");
+           NakovForwardServer.ServerDescription[] servers = listener.getServersList();
+           for (int j=0; j<servers.length; j++) {
+               appendServerState(state, listener, servers[j]);
+               state.append(j < servers.length - 1 ? ",\n" : "\n");
+           }
+           state.append("  ]}").append(i < listeners.length - 1 ? ",\n" : "\n");
+        }
+        state.append("]}");
+        return state.toString();
+    }
+ 
+    /**
+     * Appends the state of given server of given listener in JSON format
+     */
+    private static void appendServerState(StringBuffer aState, ForwardListener aListener,
+            NakovForwardServer.ServerDescription aServer)
+    {
+        aState.append("    {\"listener\": \"").append(escape(aListener.getSettingsName())).append('"');
+        aState.append(", \"host\": \"").append(escape(aServer.host)).append('"');
+        aState.append(", \"port\": ").append(aServer.port);
+        aState.append(", \"weight\": ").append(aServer.weight);
+        aState.append(", \"effectiveWeight\": ").append(aServer.getEffectiveWeight());
+        aState.append(", \"slowStartProgress\": ").append(aServer.getSlowStartProgress());
+        aState.append(", \"maxConnections\": ").append(aServer.maxConnections);
+        aState.append(", \"connections\": ").append(aServer.clientsConectedCount.get());
+        aState.append(", \"alive\": ").append(aServer.isAlive);
+        aState.append(", \"drained\": ").append(aServer.isDrained);
+        aState.append(", \"health\": \"").append(aServer.health.getStateName()).append('"');
+        aState.append(", \"ejected\": ").append(aServer.ejectedUntilMillis != 0);
+        aState.append(", \"timedOutConnects\": ").append(aServer.timedOutConnectsCount.get());
+        aState.append(", \"connectLatencyMs\": ").append(aServer.connectLatency.getAverageNanos() / 1000000);
+        aState.append(", \"responseLatencyMs\": ").append(aServer.responseLatency.getAverageNanos() / 1000000);
+        aState.append('}');
+    }
+ 
+    /**
+     * @return given string with the quotes and backslashes escaped for JSON
+     */
+    private static String escape(String aValue)
+    {
+        return aValue.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+ 
+    /**
+     * Parses given URL query string "name1=value1&name2=value2..."
+     */
+    private static HashMap<String, String> parseQuery(String aQuery)
+    throws IOException
+    {
+        HashMap<String, String> params = new HashMap<String, String>();
+        if (aQuery == null)
+           return params;
+        StringTokenizer stParams = new StringTokenizer(aQuery, "&");
+        while (stParams.hasMoreTokens()) {
+           String param = stParams.nextToken();
+           int equalsIndex = param.indexOf('=');
+           if (equalsIndex < 0)
+               params.put(URLDecoder.decode(param, "UTF-8"), "");
+           else
+               params.put(URLDecoder.decode(param.substring(0, equalsIndex), "UTF-8"),
+                   URLDecoder.decode(param.substring(equalsIndex + 1), "UTF-8"));
+        }
+        return params;
+    }
+ 
+    /**
+     * Sends given JSON response with given HTTP status code
+     */
+    private static void sendResponse(HttpExchange aExchange, int aStatusCode, String aResponse)
+    throws IOException
+    {
+        sendResponse(aExchange, aStatusCode, "application/json; charset=utf-8", aResponse + "\n");
+    }
+ 
+    /**
+     * Sends given response with given HTTP status code and content type
+     */
+    private static void sendResponse(HttpExchange aExchange, int aStatusCode, String aContentType, String aResponse)
+    throws IOException
+    {
+        byte[] responseBytes = aResponse.getBytes("UTF-8");
+        aExchange.getResponseHeaders().set("Content-Type", aContentType);
+        aExchange.sendResponseHeaders(aStatusCode, responseBytes.length);
+        OutputStream responseStream = aExchange.getResponseBody();
+        responseStream.write(responseBytes);
+        responseStream.close();
+    }
+ 
+}
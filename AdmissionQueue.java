@@ -0,0 +1,115 @@
+/**
+ * AdmissionQueue is a bounded queue of accepted clients waiting for a free
+ * connection slot when all the alive servers have reached their maximal
+ * connections count. The waiting clients are ordered by their deadlines (the
+ * time they will be rejected at), so the client closest to its deadline gets the
+ * first slot released by some server. A client not admitted before its deadline
+ * is rejected by its owner (the client thread or the reactor).
+ */
+ 
+import java.util.Comparator;
+import java.util.PriorityQueue;
+ 
+public class AdmissionQueue
+{
+    /**
+     * Waiter is a client waiting in the admission queue
+     */
+    public interface Waiter
+    {
+        /**
+         * @return the time (in milliseconds, as System.currentTimeMillis()) the
+         * waiter should be rejected at if not admitted
+         */
+        long getDeadline();
+ 
+        /**
+         * Called when a connection slot is released. The waiter is already removed
+         * from the queue and should try to reserve a server again.
+         */
+        void slotAvailable();
+    }
+ 
+    private int mMaxSize;
+    private long mTimeoutMs;
+    private PriorityQueue<Waiter> mWaiters = new PriorityQueue<Waiter>(11, new Comparator<Waiter>() {
+        public int compare(Waiter aWaiter1, Waiter aWaiter2)
+        {
+            return Long.compare(aWaiter1.getDeadline(), aWaiter2.getDeadline());
+        }
+    });
+ 
+    /**
+     * Creates an admission queue with given maximal size and waiting timeout
+     */
+    public AdmissionQueue(int aMaxSize, long aTimeoutMs)
+    {
+        mMaxSize = aMaxSize;
+        mTimeoutMs = aTimeoutMs;
+    }
+ 
+    /**
+     * @return the maximal time (in milliseconds) a client waits in the queue
+     */
+    public long getTimeoutMs()
+    {
+        return mTimeoutMs;
+    }
+ 
+    /**
+     * Adds given waiter to the queue.
+     * @return false if the queue is full (the client should be rejected).
+     */
+    public synchronized boolean add(Waiter aWaiter)
+    {
+        if (mWaiters.size() >= mMaxSize)
+           return false;
+        mWaiters.add(aWaiter);
+        return true;
+    }
+ 
+    /**
+     * Removes given waiter from the queue (e.g. when its deadline has passed)
+     * @return false if the waiter is not in the queue anymore - it has already
+     * been notified (or is being notified) about a released slot
+     */
+    public synchronized boolean remove(Waiter aWaiter)
+    {
+        return mWaiters.remove(aWaiter);
+    }
+ 
+    /**
+     * @return true if there are no waiting clients
+     */
+    public synchronized boolean isEmpty()
+    {
+        return mWaiters.isEmpty();
+    }
+ 
+    /**
+     * @return the number of waiting clients
+     */
+    public synchronized int size()
+    {
+        return mWaiters.size();
+    }
+ 
+    /**
+     * Notifies the waiter with the earliest deadline that a connection slot is
+     * released. Waiters whose deadline has already passed are skipped (their
+     * owners reject them).
+     */
+    public void slotReleased()
+    {
+        Waiter waiter;
+        synchronized (this) {
+           long now = System.currentTimeMillis();
+           do {
+               waiter = mWaiters.poll();
+           } while (waiter != null && waiter.getDeadline() <= now);
+        }
+        if (waiter != null)
+           waiter.slotAvailable();
+    }
+ 
+}
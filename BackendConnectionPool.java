@@ -0,0 +1,169 @@
+/**
+ * BackendConnectionPool keeps pre-established idle connections to a destination
+ * server, so a new client can be forwarded through an already opened connection
+ * without waiting for a TCP handshake with the server. The pool is refilled in
+ * background by BackendPoolFillerThread: it keeps at least the configured minimal
+ * number of idle connections (plus as many as were taken since the last refill,
+ * up to the configured maximum). Idle connections older than the maximal idle age
+ * are closed, because servers usually drop connections idle for too long. An
+ * idle connection closed or reset by the server meanwhile is found by a probe
+ * read when it is taken and is not given to a client. Servers that send data
+ * as soon as they are connected (e.g. a greeting) can not be pooled, because the
+ * data would be lost, so their pools stop refilling.
+ */
+ 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+ 
+public class BackendConnectionPool
+{
+    private int mMinIdle;
+    private int mMaxIdle;
+    private long mMaxIdleAgeMs;
+    private volatile boolean mServerSpeaksFirst = false;
+    private ConcurrentLinkedDeque<IdleConnection> mIdleConnections = new ConcurrentLinkedDeque<IdleConnection>();
+    private AtomicInteger mIdleCount = new AtomicInteger();
+    private AtomicInteger mTakenSinceRefill = new AtomicInteger();
+ 
+    /**
+     * IdleConnection is a connected channel and the time it was connected at
+     */
+    private static class IdleConnection
+    {
+        SocketChannel mChannel;
+        long mConnectedAt;
+ 
+        IdleConnection(SocketChannel aChannel)
+        {
+            mChannel = aChannel;
+            mConnectedAt = System.currentTimeMillis();
+        }
+    }
+ 
+    /**
+     * Creates an (empty) connection pool with given minimal and maximal number of
+     * idle connections and maximal idle age
+     */
+    public BackendConnectionPool(int aMinIdle, int aMaxIdle, long aMaxIdleAgeMs)
+    {
+        mMinIdle = aMinIdle;
+        mMaxIdle = Math.max(aMinIdle, aMaxIdle);
+        mMaxIdleAgeMs = aMaxIdleAgeMs;
+    }
+ 
+    /**
+     * @return an open idle connection (a blocking channel) to the server or null
+     * if the pool has no usable idle connections. Expired connections and the
+     * connections closed by the server are closed and skipped.
+     */
+    public SocketChannel take()
+    {
+        mTakenSinceRefill.incrementAndGet();
+        IdleConnection connection;
+        while ((connection = mIdleConnections.pollFirst()) != null) {
+           mIdleCount.decrementAndGet();
+           if (connection.mChannel.isOpen() && !isExpired(connection) && isUsable(connection.mChannel))
+               return connection.mChannel;
+           try { connection.mChannel.close(); } catch (IOException e) {}
+        }
+        return null;
+    }
+ 
+    /**
+     * Checks whether given idle connection is still usable by a non-blocking
+     * read. The read returns nothing from a usable connection (no data is
+     * consumed), the end of stream if the server has closed the connection and
+     * fails if the server has reset it. If the server has sent some data, the
+     * connection can not be used (the data is already consumed) and the pool
+     * stops refilling.
+     * @return true if the connection can be given to a client
+     */
+    private boolean isUsable(SocketChannel aChannel)
+    {
+        try {
+           aChannel.configureBlocking(false);
+           int bytesRead = aChannel.read(ByteBuffer.allocate(1));
+           aChannel.configureBlocking(true);
+           if (bytesRead > 0)
+               mServerSpeaksFirst = true;
+           return bytesRead == 0;
+        } catch (IOException ioe) {
+           return false;
+        }
+    }
+ 
+    /**
+     * Closes the expired idle connections and calculates how many connections
+     * should be opened to refill the pool (at least the minimal number of idle
+     * connections plus as many as were taken since the last refill, up to the
+     * maximum). Called by the filler thread.
+     * @return the number of connections to open
+     */
+    public int startRefill()
+    {
+        closeExpiredConnections();
+        int target = Math.min(mMaxIdle, mMinIdle + mTakenSinceRefill.getAndSet(0));
+        if (mServerSpeaksFirst)
+           target = 0;
+        return Math.max(0, target - mIdleCount.get());
+    }
+ 
+    /**
+     * Adds given connected (blocking) channel to the idle connections
+     */
+    public void add(SocketChannel aChannel)
+    {
+        mIdleConnections.addLast(new IdleConnection(aChannel));
+        mIdleCount.incrementAndGet();
+    }
+ 
+    /**
+     * @return true if the server sends data as soon as it is connected, so its
+     * connections are not pooled
+     */
+    public boolean isServerSpeakingFirst()
+    {
+        return mServerSpeaksFirst;
+    }
+ 
+    /**
+     * Closes all idle connections (e.g. when the server is found dead)
+     */
+    public void clear()
+    {
+        IdleConnection connection;
+        while ((connection = mIdleConnections.pollFirst()) != null) {
+           mIdleCount.decrementAndGet();
+           try { connection.mChannel.close(); } catch (IOException e) {}
+        }
+    }
+ 
+    /**
+     * @return the number of idle connections in the pool
+     */
+    public int getIdleCount()
+    {
+        return mIdleCount.get();
+    }
+ 
+    private void closeExpiredConnections()
+    {
+        // The oldest connections are at the head of the queue
+        IdleConnection connection;
+        while ((connection = mIdleConnections.peekFirst()) != null && isExpired(connection)) {
+           if (mIdleConnections.remove(connection)) {
+               mIdleCount.decrementAndGet();
+               try { connection.mChannel.close(); } catch (IOException e) {}
+           }
+        }
+    }
+ 
+    private boolean isExpired(IdleConnection aConnection)
+    {
+        return System.currentTimeMillis() - aConnection.mConnectedAt > mMaxIdleAgeMs;
+    }
+ 
+}
@@ -0,0 +1,203 @@
+/**
+ * BackendPoolFillerThread refills the pools of pre-established connections to
+ * the destination servers in background. It refills the pools on a fixed time
+ * interval and also immediately when a connection is taken from some pool. The
+ * pools of dead (or drained) servers are emptied and not refilled until the
+ * servers revive. The connects of a refill are started at once to all the
+ * servers without blocking, so a slow server does not delay refilling the
+ * pools of the other servers.
+ */
+ 
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Iterator;
+ 
+public class BackendPoolFillerThread extends Thread
+{
+    private static final long REFILL_INTERVAL_MS = 1000;
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+    private boolean mRefillRequested = false;
+ 
+    /**
+     * PendingConnect is a connect to a server started by a refill
+     */
+    private static class PendingConnect
+    {
+        NakovForwardServer.ServerDescription mServer;
+        SocketChannel mChannel;
+        boolean mConnected = false;
+ 
+        PendingConnect(NakovForwardServer.ServerDescription aServer, SocketChannel aChannel)
+        {
+            mServer = aServer;
+            mChannel = aChannel;
+        }
+    }
+ 
+    /**
+     * Creates a pool filler thread. NakovForwardServer object is needed
+     * for obtaining the servers list.
+     */
+    public BackendPoolFillerThread(NakovForwardServer aNakovForwardServer)
+    {
+        super("BackendPoolFiller");
+        mNakovForwardServer = aNakovForwardServer;
+    }
+ 
+    /**
+     * Wakes up the thread to refill the pools as soon as possible
+     */
+    public synchronized void requestRefill()
+    {
+        mRefillRequested = true;
+        notify();
+    }
+ 
+    /**
+     * Until stopped refills the pools of all alive servers and waits for the
+     * refill interval or for a refill request
+     */
+    public void run()
+    {
+        while (!interrupted()) {
+           refillAllPools();
+           synchronized (this) {
+               try {
+                   if (!mRefillRequested)
+                       wait(REFILL_INTERVAL_MS);
+               } catch (InterruptedException ie) {
+                   return;
+               }
+               mRefillRequested = false;
+           }
+        }
+    }
+ 
+    /**
+     * Refills the connection pools of the alive servers and empties the pools of
+     * the dead and drained ones. The connects to all the servers are started at
+     * once and the connects not completed before the connect timeout expires are
+     * abandoned. A server that fails some of its connects is reported as failed
+     * once and its pool is emptied.
+     */
+    private void refillAllPools()
+    {
+        ArrayList<PendingConnect> connects = new ArrayList<PendingConnect>();
+        ArrayList<NakovForwardServer.ServerDescription> failedServers =
+           new ArrayList<NakovForwardServer.ServerDescription>();
+        Selector selector = null;
+        try {
+           selector = Selector.open();
+           NakovForwardServer.ServerDescription[] servers = mNakovForwardServer.getServersList();
+           for (int i=0; i<servers.length; i++) {
+               BackendConnectionPool pool = servers[i].connectionPool;
+               if (pool == null)
+                   continue;
+               if (!servers[i].isAlive || servers[i].isDrained) {
+                   pool.clear();
+                   continue;
+               }
+               int count = pool.startRefill();
+               for (int j=0; j<count; j++) {
+                   if (!startConnect(servers[i], selector, connects)) {
+                       failedServers.add(servers[i]);
+                       break;
+                   }
+               }
+           }
+ 
+           // Wait for the started connects until the connect timeout expires
+           int pendingConnects = selector.keys().size();
+           long deadline = System.currentTimeMillis() + mNakovForwardServer.getConnectTimeoutMs();
+           while (pendingConnects > 0) {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+                   break;
+               selector.select(remaining);
+               Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+               while (keys.hasNext()) {
+                   SelectionKey key = keys.next();
+                   keys.remove();
+                   PendingConnect connect = (PendingConnect) key.attachment();
+                   try {
+                       connect.mConnected = connect.mChannel.finishConnect();
+                   } catch (IOException ioe) {
+                       // The server does not accept connections --> it may be dead
+                       if (!failedServers.contains(connect.mServer))
+                           failedServers.add(connect.mServer);
+                   }
+                   key.cancel();
+                   pendingConnects--;
+               }
+           }
+        } catch (IOException ioe) {
+           ioe.printStackTrace();
+        } finally {
+           if (selector != null)
+               try { selector.close(); } catch (IOException e) {}
+        }
+ 
+        // Pool the connected channels of the servers without failures
+        for (int i=0; i<connects.size(); i++) {
+           PendingConnect connect = connects.get(i);
+           if (!connect.mConnected && !failedServers.contains(connect.mServer)) {
+               // The connect timed out
+               connect.mServer.timedOutConnectsCount.incrementAndGet();
+               failedServers.add(connect.mServer);
+           }
+        }
+        for (int i=0; i<connects.size(); i++) {
+           PendingConnect connect = connects.get(i);
+           if (connect.mConnected && !failedServers.contains(connect.mServer)) {
+               try {
+                   connect.mChannel.configureBlocking(true);
+                   connect.mServer.connectionPool.add(connect.mChannel);
+                   continue;
+               } catch (IOException ioe) {
+                   // Close the channel below
+               }
+           }
+           try { connect.mChannel.close(); } catch (IOException e) {}
+        }
+        for (int i=0; i<failedServers.size(); i++) {
+           NakovForwardServer.ServerDescription server = failedServers.get(i);
+           mNakovForwardServer.reportServerFailure(server);
+           server.connectionPool.clear();
+        }
+    }
+ 
+    /**
+     * Starts a non-blocking connect to given server and adds it to given pending
+     * connects. A connect completed at once is added as connected.
+     * @return false if the connect has failed at once
+     */
+    private static boolean startConnect(NakovForwardServer.ServerDescription aServer, Selector aSelector,
+            ArrayList<PendingConnect> aConnects)
+    {
+        SocketChannel channel = null;
+        try {
+           channel = SocketChannel.open();
+           channel.configureBlocking(false);
+           PendingConnect connect = new PendingConnect(aServer, channel);
+           if (channel.connect(aServer.address))
+               connect.mConnected = true;
+           else
+               channel.register(aSelector, SelectionKey.OP_CONNECT, connect);
+           aConnects.add(connect);
+           return true;
+        } catch (IOException ioe) {
+           // The server does not accept connections --> it may be dead
+        } catch (UnresolvedAddressException uae) {
+           // The host name of the server has never been resolved
+        }
+        if (channel != null)
+           try { channel.close(); } catch (IOException e) {}
+        return false;
+    }
+ 
+}
@@ -0,0 +1,262 @@
+/**
+ * BufferPool is a pool of direct (off-heap) byte buffers shared by all the
+ * forwarding threads and reactors. The buffers (slabs) come in size classes -
+ * the powers of two between the minimal and the maximal buffer size. The slabs
+ * of each size class are sliced from large direct arenas allocated on demand
+ * until the configured memory cap of the whole pool is reached. When the cap is
+ * reached, heap buffers outside the pool are handed out instead. Reactor threads
+ * use a LocalCache to avoid touching the shared pool for every read. The numbers
+ * of used and free slabs are exposed as gauges.
+ */
+ 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+ 
+public class BufferPool
+{
+    private static final int ARENA_SIZE = 512*1024;
+    private static final int LOCAL_CACHE_SIZE = 32;
+ 
+    private int mMinSlabSize;
+    private int mMaxSlabSize;
+    private long mMaxPoolMemory;
+    private SizeClass[] mSizeClasses;
+    private AtomicLong mAllocatedMemory = new AtomicLong();
+    private AtomicLong mUnpooledAllocations = new AtomicLong();
+ 
+    /**
+     * SizeClass holds the free slabs with given size and the slab counters
+     */
+    private static class SizeClass
+    {
+        int mSlabSize;
+        ConcurrentLinkedQueue<ByteBuffer> mFreeSlabs = new ConcurrentLinkedQueue<ByteBuffer>();
+        AtomicLong mAllocatedSlabs = new AtomicLong();
+        LongAdder mUsedSlabs = new LongAdder();
+ 
+        SizeClass(int aSlabSize)
+        {
+            mSlabSize = aSlabSize;
+        }
+    }
+ 
+    /**
+     * LocalCache keeps a few free slabs of each size for a single thread (e.g. a
+     * reactor) so that acquiring and releasing buffers does not contend on the
+     * shared pool. It should be used only by the thread that created it.
+     */
+    public class LocalCache
+    {
+        private ArrayList<ArrayDeque<ByteBuffer>> mCachedSlabs;
+ 
+        LocalCache()
+        {
+            mCachedSlabs = new ArrayList<ArrayDeque<ByteBuffer>>(mSizeClasses.length);
+            for (int i=0; i<mSizeClasses.length; i++)
+               mCachedSlabs.add(new ArrayDeque<ByteBuffer>());
+        }
+ 
+        /**
+         * @return a cleared buffer with at least given size (rounded to a size
+         * class) from this cache or from the shared pool
+         */
+        public ByteBuffer acquire(int aSize)
+        {
+            int index = getSizeClassIndex(aSize);
+            ByteBuffer buffer = mCachedSlabs.get(index).pollLast();
+            if (buffer == null)
+               return BufferPool.this.acquire(aSize);
+            mSizeClasses[index].mUsedSlabs.increment();
+            return buffer;
+        }
+ 
+        /**
+         * Returns given buffer to this cache or to the shared pool if the cache is full
+         */
+        public void release(ByteBuffer aBuffer)
+        {
+            if (!aBuffer.isDirect())
+               return;  // Allocated outside the pool
+            int index = getSizeClassIndex(aBuffer.capacity());
+            if (mCachedSlabs.get(index).size() >= LOCAL_CACHE_SIZE) {
+               BufferPool.this.release(aBuffer);
+               return;
+            }
+            aBuffer.clear();
+            mCachedSlabs.get(index).addLast(aBuffer);
+            mSizeClasses[index].mUsedSlabs.decrement();
+        }
+    }
+ 
+    /**
+     * Creates a buffer pool of buffers with sizes from given minimal to given
+     * maximal size (both rounded up to a power of two). The pool never allocates
+     * more than given amount of direct memory (in bytes).
+     */
+    public BufferPool(int aMinSlabSize, int aMaxSlabSize, long aMaxPoolMemory)
+    {
+        mMinSlabSize = roundToPowerOfTwo(aMinSlabSize);
+        mMaxSlabSize = Math.max(mMinSlabSize, roundToPowerOfTwo(aMaxSlabSize));
+        mMaxPoolMemory = aMaxPoolMemory;
+        int classesCount = Integer.numberOfTrailingZeros(mMaxSlabSize) -
+           Integer.numberOfTrailingZeros(mMinSlabSize) + 1;
+        mSizeClasses = new SizeClass[classesCount];
+        for (int i=0; i<classesCount; i++)
+           mSizeClasses[i] = new SizeClass(mMinSlabSize << i);
+    }
+ 
+    /**
+     * @return a cleared buffer with at least given size (rounded up to a size
+     * class, at most getMaxSlabSize()). A direct buffer from the pool is returned
+     * if possible, otherwise a new heap buffer.
+     */
+    public ByteBuffer acquire(int aSize)
+    {
+        SizeClass sizeClass = mSizeClasses[getSizeClassIndex(aSize)];
+        ByteBuffer buffer = sizeClass.mFreeSlabs.poll();
+        if (buffer == null && allocateArena(sizeClass))
+           buffer = sizeClass.mFreeSlabs.poll();
+        if (buffer == null) {
+           // The pool is exhausted --> allocate outside the pool
+           mUnpooledAllocations.incrementAndGet();
+           return ByteBuffer.allocate(sizeClass.mSlabSize);
+        }
+        sizeClass.mUsedSlabs.increment();
+        return buffer;
+    }
+ 
+    /**
+     * Returns given buffer (obtained by acquire()) to the pool
+     */
+    public void release(ByteBuffer aBuffer)
+    {
+        if (!aBuffer.isDirect())
+           return;  // Allocated outside the pool
+        SizeClass sizeClass = mSizeClasses[getSizeClassIndex(aBuffer.capacity())];
+        aBuffer.clear();
+        sizeClass.mFreeSlabs.add(aBuffer);
+        sizeClass.mUsedSlabs.decrement();
+    }
+ 
+    /**
+     * @return a new cache of free buffers for the current thread
+     */
+    public LocalCache createLocalCache()
+    {
+        return new LocalCache();
+    }
+ 
+    /**
+     * Allocates a new direct arena for given size class and slices it into free slabs.
+     * @return false if the memory cap of the pool is reached.
+     */
+    private boolean allocateArena(SizeClass aSizeClass)
+    {
+        long allocated;
+        int slabsCount;
+        do {
+           allocated = mAllocatedMemory.get();
+           long available = mMaxPoolMemory - allocated;
+           slabsCount = (int) Math.min(Math.max(1, ARENA_SIZE / aSizeClass.mSlabSize),
+               available / aSizeClass.mSlabSize);
+           if (slabsCount <= 0)
+               return false;
+        } while (!mAllocatedMemory.compareAndSet(allocated, allocated + (long) slabsCount * aSizeClass.mSlabSize));
+ 
+        ByteBuffer arena = ByteBuffer.allocateDirect(slabsCount * aSizeClass.mSlabSize);
+        for (int i=0; i<slabsCount; i++) {
+           arena.limit((i + 1) * aSizeClass.mSlabSize);
+           arena.position(i * aSizeClass.mSlabSize);
+           aSizeClass.mFreeSlabs.add(arena.slice());
+        }
+        aSizeClass.mAllocatedSlabs.addAndGet(slabsCount);
+        return true;
+    }
+ 
+    /**
+     * @return the index of the smallest size class holding given size
+     */
+    private int getSizeClassIndex(int aSize)
+    {
+        if (aSize <= mMinSlabSize)
+           return 0;
+        if (aSize >= mMaxSlabSize)
+           return mSizeClasses.length - 1;
+        return Integer.numberOfTrailingZeros(roundToPowerOfTwo(aSize)) -
+           Integer.numberOfTrailingZeros(mMinSlabSize);
+    }
+ 
+    private static int roundToPowerOfTwo(int aSize)
+    {
+        int highestBit = Integer.highestOneBit(Math.max(1, aSize));
+        return (highestBit == aSize) ? aSize : highestBit << 1;
+    }
+ 
+    /**
+     * @return the size (in bytes) of the smallest buffers in this pool
+     */
+    public int getMinSlabSize()
+    {
+        return mMinSlabSize;
+    }
+ 
+    /**
+     * @return the size (in bytes) of the largest buffers in this pool
+     */
+    public int getMaxSlabSize()
+    {
+        return mMaxSlabSize;
+    }
+ 
+    /**
+     * @return the number of pooled buffers (of all sizes) currently in use
+     */
+    public long getUsedSlabsCount()
+    {
+        long count = 0;
+        for (int i=0; i<mSizeClasses.length; i++)
+           count += mSizeClasses[i].mUsedSlabs.sum();
+        return count;
+    }
+ 
+    /**
+     * @return the number of allocated pooled buffers (of all sizes) that are not
+     * in use (in the shared pool or in some local cache)
+     */
+    public long getFreeSlabsCount()
+    {
+        long count = 0;
+        for (int i=0; i<mSizeClasses.length; i++)
+           count += mSizeClasses[i].mAllocatedSlabs.get() - mSizeClasses[i].mUsedSlabs.sum();
+        return count;
+    }
+ 
+    /**
+     * @return the direct memory (in bytes) allocated by the pool so far
+     */
+    public long getAllocatedMemory()
+    {
+        return mAllocatedMemory.get();
+    }
+ 
+    /**
+     * @return the maximal direct memory (in bytes) the pool can allocate
+     */
+    public long getMaxPoolMemory()
+    {
+        return mMaxPoolMemory;
+    }
+ 
+    /**
+     * @return how many times a heap buffer was handed out because the pool was exhausted
+     */
+    public long getUnpooledAllocationsCount()
+    {
+        return mUnpooledAllocations.get();
+    }
+ 
+}
@@ -1,17 +1,42 @@
 /**
- * CheckAliveThread checks all dead servers in the server list and updates the
- * list when some dead server becomes alive. Checking is done on a beforehand
- * specified time itrervals. A server is considered alive if it accepts client
- * connections on the specified port.
+ * CheckAliveThread checks all the servers in the server list (alive and dead)
+ * and reports the results to their health state machines (see ServerHealth), so
+ * an alive server that fails is noticed before the clients hit it and a dead
+ * server becomes alive after enough successful checks. Each server is checked on
+ * a beforehand specified time itrervals (randomly jittered, backed off for long
+ * dead servers). A server is considered alive if it accepts client
+ * connections on the specified port and answers its application-level health
+ * check (see HealthCheck) if one is configured. All the servers are probed
+ * concurrently by non-blocking sockets, so a check takes no longer than the
+ * probe timeout. The host names of the checked servers are resolved again in
+ * background threads and the probes use the last resolved addresses, so a slow
+ * or failing DNS lookup does not delay the checks. A check of all the servers
+ * can also be requested at any time (e.g. by the administrator).
  */
  
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
  
  
 public class CheckAliveThread extends Thread
 {
+    private static final long MIN_CHECK_DELAY_MS = 10;
+ 
 	private NakovForwardServer mNakovForwardServer = null;
+    private boolean mCheckRequested = false;
+    private ExecutorService mAddressResolver = null;
+    private Set<NakovForwardServer.ServerDescription> mResolvingServers =
+        ConcurrentHashMap.<NakovForwardServer.ServerDescription>newKeySet();
  
     /**
      * Creates a check alive thread. NakovForwardServer object is needed
@@ -20,53 +45,267 @@ public class CheckAliveThread extends Thread
     public CheckAliveThread(NakovForwardServer aNakovForwardServer)
     {
         mNakovForwardServer = aNakovForwardServer;
+        mAddressResolver = Executors.newCachedThreadPool(new ThreadFactory() {
+           public Thread newThread(Runnable aTask)
+           {
+               Thread thread = new Thread(aTask, "AddressResolver");
+               thread.setDaemon(true);
+               return thread;
+           }
+        });
     }
  
     /**
-     * Until stopped checks all dead servers if they are alive and waits
-     * specified time interval
+     * Wakes up the thread to check all the servers at once, whether their check
+     * is due or not
+     */
+    public synchronized void requestCheck()
+    {
+        mCheckRequested = true;
+        notify();
+    }
+ 
+    /**
+     * Until stopped waits for the next check time of some server (or for a check
+     * request) and checks all the servers whose check is due if they are alive.
+     * Returns the ejected servers whose ejection has expired.
      */
     public void run()
     {
         while (!interrupted()) {
-            try {
-               Thread.sleep(mNakovForwardServer.getCheckAliveIntervalMs());
-           } catch (InterruptedException ie)     {
-               ie.printStackTrace();
+           boolean checkAll;
+           synchronized (this) {
+               try {
+                   if (!mCheckRequested)
+                       wait(getTimeToNextCheck());
+               } catch (InterruptedException ie) {
+                   ie.printStackTrace();
+               }
+               checkAll = mCheckRequested;
+               mCheckRequested = false;
            }
-           checkAllDeadServers();
+           mNakovForwardServer.returnEjectedServers();
+           checkAllDueServers(checkAll);
         }
     }
  
     /**
-     * Checks all dead servers if they are alive and updates their state if needed.
+     * @return the time (in milliseconds) until the earliest check of some server
+     * or the earliest end of some server's ejection
      */
-    private void checkAllDeadServers()
+    private long getTimeToNextCheck()
     {
         NakovForwardServer.ServerDescription[] servers = mNakovForwardServer.getServersList();
+        long nextCheck = Long.MAX_VALUE;
         for (int i=0; i<servers.length; i++) {
-           if (!servers[i].isAlive)
-               if (alive(servers[i].host, servers[i].port))     {
-                   servers[i].isAlive = true;
+           nextCheck = Math.min(nextCheck, servers[i].health.getNextCheckMillis());
+           if (servers[i].ejectedUntilMillis != 0)
+               nextCheck = Math.min(nextCheck, servers[i].ejectedUntilMillis);
+        }
+        long timeToNextCheck = nextCheck - System.currentTimeMillis();
+        return Math.max(MIN_CHECK_DELAY_MS, Math.min(timeToNextCheck, mNakovForwardServer.getCheckAliveIntervalMs()));
+    }
+ 
+    /**
+     * Checks all the servers whose check is due (or all the servers if given
+     * flag is set) if they are alive, reports the results, so their state is
+     * updated if needed, and schedules their next checks.
+     */
+    private void checkAllDueServers(boolean aCheckAll)
+    {
+        NakovForwardServer.ServerDescription[] servers = mNakovForwardServer.getServersList();
+        long now = System.currentTimeMillis();
+        boolean[] checked = new boolean[servers.length];
+        for (int i=0; i<servers.length; i++) {
+           checked[i] = aCheckAll || servers[i].health.isCheckDue(now);
+           if (checked[i])
+               resolveAddressInBackground(servers[i]);
+        }
+        boolean[] alive = probe(servers, checked);
+        for (int i=0; i<servers.length; i++) {
+           if (!checked[i])
+               continue;
+           if (alive[i])
+               mNakovForwardServer.reportServerSuccess(servers[i]);
+           else
+               mNakovForwardServer.reportServerFailure(servers[i]);
+           servers[i].health.scheduleNextCheck();
+        }
+    }
+ 
+    /**
+     * Resolves the host name of given server again in a background thread, unless
+     * its previous lookup is still in progress. The new address is used by the
+     * next checks and connects.
+     */
+    private void resolveAddressInBackground(final NakovForwardServer.ServerDescription aServer)
+    {
+        if (!mResolvingServers.add(aServer))
+           return;
+        mAddressResolver.execute(new Runnable() {
+           public void run()
+           {
+               try {
+                   aServer.resolveAddress();
+               } finally {
+                   mResolvingServers.remove(aServer);
                }
+           }
+        });
+    }
+ 
+    /**
+     * Probe is a check of a single server in progress: a non-blocking connect
+     * and, if the server has an application-level health check, sending its
+     * payload and receiving the response
+     */
+    private static class Probe
+    {
+        int mIndex;
+        HealthCheck mHealthCheck;
+        SocketChannel mChannel;
+        SelectionKey mKey;
+        ByteBuffer mSendBuffer;
+        byte[] mResponse = new byte[HealthCheck.MAX_RESPONSE_SIZE];
+        int mResponseLength = 0;
+ 
+        Probe(int aIndex, HealthCheck aHealthCheck)
+        {
+            mIndex = aIndex;
+            mHealthCheck = aHealthCheck;
+            if (aHealthCheck != null)
+               mSendBuffer = ByteBuffer.wrap(aHealthCheck.getSendData());
+        }
+ 
+        /**
+         * Continues the check after the connection is established.
+         * @return true if the check is finished (the server is alive)
+         */
+        boolean connected()
+        {
+            if (mHealthCheck == null)
+               return true;
+            if (mSendBuffer.hasRemaining())
+               mKey.interestOps(SelectionKey.OP_WRITE);
+            else if (mHealthCheck.isResponseExpected())
+               mKey.interestOps(SelectionKey.OP_READ);
+            else
+               return true;
+            return false;
+        }
+ 
+        /**
+         * Sends the rest of the payload.
+         * @return true if the check is finished (the server is alive)
+         */
+        boolean writable() throws IOException
+        {
+            mChannel.write(mSendBuffer);
+            if (mSendBuffer.hasRemaining())
+               return false;
+            if (!mHealthCheck.isResponseExpected())
+               return true;
+            mKey.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+ 
+        /**
+         * Receives a part of the response and matches it against the expected one.
+         * @return HealthCheck.MATCHED, NOT_MATCHED or NEED_MORE_DATA
+         */
+        int readable() throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(mResponse, mResponseLength, mResponse.length - mResponseLength);
+            int bytesRead = mChannel.read(buffer);
+            if (bytesRead > 0)
+               mResponseLength += bytesRead;
+            return mHealthCheck.match(mResponse, mResponseLength, bytesRead == -1);
         }
     }
  
     /**
-     * Checks if given server is alive (if accepts client connections on specified port)
+     * Checks the given servers which are marked for checking if they are alive
+     * (if accept client connections on specified port and answer their health
+     * check as expected). Non-blocking connects to the last resolved addresses of
+     * all of them are started at once and then the checks completed before the
+     * probe timeout expires are collected.
+     * @return which of the checked servers are alive
      */
-    private boolean alive(String host, int port)
+    private boolean[] probe(NakovForwardServer.ServerDescription[] aServers, boolean[] aChecked)
     {
-        boolean result = false;
+        boolean[] alive = new boolean[aServers.length];
+        Probe[] probes = new Probe[aServers.length];
+        Selector selector = null;
         try {
-           Socket s = new Socket(host, port);
-           result = true;
-           s.close();
+           selector = Selector.open();
+           int pendingProbes = 0;
+           for (int i=0; i<aServers.length; i++) {
+               if (!aChecked[i])
+                   continue;
+               Probe probe = new Probe(i, aServers[i].healthCheck);
+               probes[i] = probe;
+               try {
+                   probe.mChannel = SocketChannel.open();
+                   probe.mChannel.configureBlocking(false);
+                   boolean connected = probe.mChannel.connect(aServers[i].address);
+                   probe.mKey = probe.mChannel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, probe);
+                   if (connected && probe.connected())
+                       alive[i] = true;
+                   else
+                       pendingProbes++;
+               } catch (IOException ioe) {
+                   // Ignore unsuccessfull connect attempts
+               } catch (UnresolvedAddressException uae) {
+                   // Ignore unknown hosts
+               }
+           }
+ 
+           // Wait for the started checks until the probe timeout expires
+           long deadline = System.currentTimeMillis() + mNakovForwardServer.getProbeTimeoutMs();
+           while (pendingProbes > 0) {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+                   break;
+               selector.select(remaining);
+               Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+               while (keys.hasNext()) {
+                   SelectionKey key = keys.next();
+                   keys.remove();
+                   Probe probe = (Probe) key.attachment();
+                   boolean finished;
+                   boolean probeAlive = false;
+                   try {
+                       if (key.isConnectable()) {
+                           probe.mChannel.finishConnect();
+                           finished = probeAlive = probe.connected();
+                       } else if (key.isWritable()) {
+                           finished = probeAlive = probe.writable();
+                       } else {
+                           int result = probe.readable();
+                           finished = (result != HealthCheck.NEED_MORE_DATA);
+                           probeAlive = (result == HealthCheck.MATCHED);
+                       }
+                   } catch (IOException ioe) {
+                       // Ignore unsuccessfull connect attempts and broken checks
+                       finished = true;
+                   }
+                   if (finished) {
+                       alive[probe.mIndex] = probeAlive;
+                       key.cancel();
+                       pendingProbes--;
+                   }
+               }
+           }
         } catch (IOException ioe) {
            ioe.printStackTrace();
-           // Ignore unsuccessfull connect attempts
+        } finally {
+           for (int i=0; i<probes.length; i++)
+               if (probes[i] != null && probes[i].mChannel != null)
+                   try { probes[i].mChannel.close(); } catch (IOException e) {}
+           if (selector != null)
+               try { selector.close(); } catch (IOException e) {}
         }
-        return result;
+        return alive;
     }
  
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+/**
+ * ConcurrencyBenchmark is a standalone load driver that finds the ceiling of the
+ * concurrent connections Nakov Forward Server can hold. It starts an echo server
+ * (the destination server) on given port and then opens connections through the
+ * forward server in steps, checking each new connection with a short message
+ * that should be echoed back. It stops at the first connection that fails or at
+ * given maximum, checks again all the connections held open and prints the
+ * results. Run the forward server with "Servers = localhost:<echo port>" and the
+ * engine or thread mode to be measured, then run:
+ *     java ConcurrencyBenchmark <echo port> <listening port> <max connections> [step]
+ * The file descriptors limit (ulimit -n) of both processes should be above twice
+ * the maximal number of connections.
+ */
+ 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+ 
+public class ConcurrencyBenchmark
+{
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int ECHO_TIMEOUT_MS = 5000;
+    private static final byte[] MESSAGE = "NakovForwardServer benchmark\n".getBytes();
+ 
+    /**
+     * EchoServer is the destination server: it sends back everything it receives.
+     * A single thread serves all the connections with a selector, so the echo
+     * server is never the bottleneck.
+     */
+    private static class EchoServer extends Thread
+    {
+        private Selector mSelector;
+ 
+        EchoServer(int aPort) throws IOException
+        {
+            super("EchoServer");
+            setDaemon(true);
+            mSelector = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), aPort), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        }
+ 
+        public void run()
+        {
+            while (true) {
+               try {
+                   mSelector.select();
+               } catch (IOException ioe) {
+                   ioe.printStackTrace();
+                   return;
+               }
+               Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+               while (keys.hasNext()) {
+                   SelectionKey key = keys.next();
+                   keys.remove();
+                   try {
+                       if (key.isAcceptable())
+                           accept((ServerSocketChannel) key.channel());
+                       else
+                           echo(key);
+                   } catch (IOException ioe) {
+                       key.cancel();
+                       try { key.channel().close(); } catch (IOException e) {}
+                   }
+               }
+            }
+        }
+ 
+        private void accept(ServerSocketChannel aServerChannel) throws IOException
+        {
+            SocketChannel channel;
+            while ((channel = aServerChannel.accept()) != null) {
+               channel.configureBlocking(false);
+               channel.register(mSelector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+            }
+        }
+ 
+        /**
+         * Reads the available data and writes back as much as possible. The rest
+         * is written when the channel becomes writable again.
+         */
+        private void echo(SelectionKey aKey) throws IOException
+        {
+            SocketChannel channel = (SocketChannel) aKey.channel();
+            ByteBuffer buffer = (ByteBuffer) aKey.attachment();
+            if (aKey.isReadable() && channel.read(buffer) == -1) {
+               aKey.cancel();
+               channel.close();
+               return;
+            }
+            buffer.flip();
+            channel.write(buffer);
+            buffer.compact();
+            aKey.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+ 
+    /**
+     * Sends the message through given connection and waits for its echo
+     * @throws IOException if the echo is not received in time
+     */
+    private static void checkEcho(Socket aSocket) throws IOException
+    {
+        aSocket.getOutputStream().write(MESSAGE);
+        InputStream in = aSocket.getInputStream();
+        byte[] echo = new byte[MESSAGE.length];
+        int received = 0;
+        while (received < echo.length) {
+           int bytesRead = in.read(echo, received, echo.length - received);
+           if (bytesRead == -1)
+               throw new IOException("Connection closed by the forward server");
+           received += bytesRead;
+        }
+        if (!Arrays.equals(echo, MESSAGE))
+           throw new IOException("Wrong echo received");
+    }
+ 
+    /**
+     * Opens a connection through the forward server and checks it
+     * @throws IOException if connecting or the check fails
+     */
+    private static Socket openConnection(int aPort) throws IOException
+    {
+        Socket socket = new Socket();
+        try {
+           socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), aPort), CONNECT_TIMEOUT_MS);
+           socket.setSoTimeout(ECHO_TIMEOUT_MS);
+           checkEcho(socket);
+           return socket;
+        } catch (IOException ioe) {
+           socket.close();
+           throw ioe;
+        }
+    }
+ 
+    /**
+     * Opens connections through the forward server in steps until the maximum
+     * or the first failure, prints the progress and checks the open connections
+     */
+    public static void main(String[] aArgs) throws Exception
+    {
+        if (aArgs.length < 3) {
+           System.out.println("Usage: java ConcurrencyBenchmark <echo port> <listening port> " +
+               "<max connections> [step]");
+           return;
+        }
+        int echoPort = Integer.parseInt(aArgs[0]);
+        int forwardPort = Integer.parseInt(aArgs[1]);
+        int maxConnections = Integer.parseInt(aArgs[2]);
+        int step = (aArgs.length > 3) ? Integer.parseInt(aArgs[3]) : 500;
+        new EchoServer(echoPort).start();
+ 
+        ArrayList<Socket> sockets = new ArrayList<Socket>();
+        String failure = null;
+        long startTime = System.currentTimeMillis();
+        while (sockets.size() < maxConnections && failure == null) {
+           long stepStartTime = System.currentTimeMillis();
+           int stepEnd = Math.min(sockets.size() + step, maxConnections);
+           while (sockets.size() < stepEnd) {
+               try {
+                   sockets.add(openConnection(forwardPort));
+               } catch (IOException ioe) {
+                   failure = ioe.toString();
+                   break;
+               }
+           }
+           System.out.println(sockets.size() + " connections open, last step took " +
+               (System.currentTimeMillis() - stepStartTime) + " ms.");
+        }
+        long openTime = System.currentTimeMillis() - startTime;
+ 
+        // All the connections held open should still be forwarded
+        long checkStartTime = System.currentTimeMillis();
+        int working = 0;
+        for (int i=0; i<sockets.size(); i++) {
+           try {
+               checkEcho(sockets.get(i));
+               working++;
+           } catch (IOException ioe) {
+               // Counted as not working
+           }
+        }
+        long checkTime = System.currentTimeMillis() - checkStartTime;
+        for (int i=0; i<sockets.size(); i++)
+           try { sockets.get(i).close(); } catch (IOException e) {}
+ 
+        System.out.println();
+        if (failure != null)
+           System.out.println("Connection " + (sockets.size() + 1) + " failed: " + failure);
+        System.out.println("Concurrent connections: " + sockets.size() + " (opened in " + openTime + " ms)");
+        System.out.println("Working after all were opened: " + working + " (checked in " + checkTime + " ms)");
+    }
+ 
+}
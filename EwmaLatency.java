@@ -0,0 +1,46 @@
+/**
+ * EwmaLatency keeps an exponentially weighted moving average of latency samples
+ * (e.g. connect times of a server). Each new sample moves the average by a fixed
+ * fraction of its difference from the sample, so the average follows recent
+ * changes (e.g. a server pausing for garbage collection) and forgets old ones.
+ * Samples are recorded without locks (CAS on the bits of the average).
+ */
+ 
+import java.util.concurrent.atomic.AtomicLong;
+ 
+public class EwmaLatency
+{
+    private static final double ALPHA = 0.3;  // Weight of the newest sample
+    private static final long NO_SAMPLES = Double.doubleToRawLongBits(-1.0);
+ 
+    private AtomicLong mAverageBits = new AtomicLong(NO_SAMPLES);
+ 
+    /**
+     * Adds a latency sample (in nanoseconds) to the moving average
+     */
+    public void record(long aLatencyNanos)
+    {
+        while (true) {
+           long oldBits = mAverageBits.get();
+           double newAverage;
+           if (oldBits == NO_SAMPLES)
+               newAverage = aLatencyNanos;
+           else {
+               double oldAverage = Double.longBitsToDouble(oldBits);
+               newAverage = oldAverage + ALPHA * (aLatencyNanos - oldAverage);
+           }
+           if (mAverageBits.compareAndSet(oldBits, Double.doubleToRawLongBits(newAverage)))
+               return;
+        }
+    }
+ 
+    /**
+     * @return the moving average latency (in nanoseconds) or 0 if there are no samples yet
+     */
+    public double getAverageNanos()
+    {
+        long bits = mAverageBits.get();
+        return (bits == NO_SAMPLES) ? 0 : Double.longBitsToDouble(bits);
+    }
+ 
+}
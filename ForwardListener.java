@@ -0,0 +1,249 @@
+/**
+ * ForwardListener is a listening port of Nakov Forward Server with its own pool
+ * of destination servers: the clients accepted on the port are forwarded to the
+ * servers of this listener only, chosen by the listener's load balancing
+ * algorithm. Each listener has its own admission queue, while the forwarding
+ * threads or reactors, the buffer pool and the health checking are shared by all
+ * the listeners of the server. The server list and the load balancer can be
+ * replaced at runtime (when the settings are reloaded). Each port of a port range
+ * listener from the settings is a separate ForwardListener with the same
+ * settings name.
+ */
+ 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+ 
+public class ForwardListener
+{
+    private String mName;
+    private String mSettingsName;
+    private int mListeningPort;
+    private volatile NakovForwardServer.ServerDescription[] mServersList;
+    private volatile LoadBalancer mLoadBalancer;
+    private volatile AdmissionQueue mAdmissionQueue = null;
+    private ForwardMetrics mMetrics;
+ 
+    /**
+     * Creates a listener with given name, name in the settings, listening port,
+     * destination servers, load balancer and metrics (shared by the ports of a
+     * port range)
+     */
+    public ForwardListener(String aName, String aSettingsName, int aListeningPort,
+            NakovForwardServer.ServerDescription[] aServersList, LoadBalancer aLoadBalancer,
+            ForwardMetrics aMetrics)
+    {
+        mName = aName;
+        mMetrics = aMetrics;
+        mSettingsName = aSettingsName;
+        mListeningPort = aListeningPort;
+        mLoadBalancer = aLoadBalancer;
+        setServersList(aServersList);
+    }
+ 
+    /**
+     * @return the name of this listener
+     */
+    public String getName()
+    {
+        return mName;
+    }
+ 
+    /**
+     * @return the name of the listener in the settings (the same for all the
+     * ports of a port range)
+     */
+    public String getSettingsName()
+    {
+        return mSettingsName;
+    }
+ 
+    /**
+     * @return true if this listener is a port of a port range listener
+     */
+    public boolean isPortRangeMember()
+    {
+        return !mName.equals(mSettingsName);
+    }
+ 
+    /**
+     * @return the metrics of the connections accepted by this listener
+     */
+    public ForwardMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+ 
+    /**
+     * @return the TCP port this listener accepts clients on
+     */
+    public int getListeningPort()
+    {
+        return mListeningPort;
+    }
+ 
+    /**
+     * @return the destination servers of this listener
+     */
+    public NakovForwardServer.ServerDescription[] getServersList()
+    {
+        return mServersList;
+    }
+ 
+    /**
+     * Replaces the destination servers of this listener at once. The clients
+     * already forwarded to the removed servers are not affected.
+     */
+    public void setServersList(NakovForwardServer.ServerDescription[] aServersList)
+    {
+        for (int i=0; i<aServersList.length; i++)
+           aServersList[i].listener = this;
+        mServersList = aServersList;
+    }
+ 
+    /**
+     * @return the load balancer choosing the servers for the clients of this listener
+     */
+    public LoadBalancer getLoadBalancer()
+    {
+        return mLoadBalancer;
+    }
+ 
+    /**
+     * Replaces the load balancer of this listener
+     */
+    public void setLoadBalancer(LoadBalancer aLoadBalancer)
+    {
+        mLoadBalancer = aLoadBalancer;
+    }
+ 
+    /**
+     * @return true if load balancing algorithm is enabled.
+     */
+    public boolean isLoadBalancingEnabled()
+    {
+        return mLoadBalancer.getAlgorithm() != LoadBalancer.FIRST_ALIVE;
+    }
+ 
+    /**
+     * @return true if at least one of the destination servers not in given list
+     * of tried servers is alive
+     */
+    public boolean isAnyServerAlive(ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        NakovForwardServer.ServerDescription[] servers = mServersList;
+        for (int i=0; i<servers.length; i++)
+           if (servers[i].isAlive && !aTriedServers.contains(servers[i]))
+               return true;
+        return false;
+    }
+ 
+    /**
+     * @return the queue of clients waiting for a free connection slot or null if
+     * the connections to the servers are not limited or waiting is disabled
+     */
+    public AdmissionQueue getAdmissionQueue()
+    {
+        return mAdmissionQueue;
+    }
+ 
+    /**
+     * Creates the admission queue with given size and timeout if the connections
+     * to some of the servers are limited and waiting is enabled (a queue size and
+     * a timeout greater than 0)
+     */
+    public void createAdmissionQueueIfNeeded(int aQueueSize, long aTimeoutMs)
+    {
+        if (mAdmissionQueue != null || aQueueSize <= 0 || aTimeoutMs <= 0)
+           return;
+        NakovForwardServer.ServerDescription[] servers = mServersList;
+        for (int i=0; i<servers.length; i++) {
+           if (servers[i].maxConnections > 0) {
+               mAdmissionQueue = new AdmissionQueue(aQueueSize, aTimeoutMs);
+               return;
+           }
+        }
+    }
+ 
+    /**
+     * Notifies the admission queue (if any) that a connection slot may be free
+     */
+    public void slotReleased()
+    {
+        AdmissionQueue admissionQueue = mAdmissionQueue;
+        if (admissionQueue != null)
+           admissionQueue.slotReleased();
+    }
+ 
+    /**
+     * Selects a server from the server list for a client with given address by
+     * the load balancing algorithm and reserves a client connection to it (see
+     * LoadBalancer). The servers in given list of servers the client has already
+     * tried are skipped. The reservation should be released by releaseServer() when
+     * the client is disconnected or the connect fails.
+     * @return the reserved server or null if all the servers in the list are dead
+     * (or tried).
+     */
+    public NakovForwardServer.ServerDescription reserveServer(InetAddress aClientAddress,
+            ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        return mLoadBalancer.reserveServer(mServersList, aClientAddress, aTriedServers);
+    }
+ 
+    /**
+     * Releases a client connection reserved by reserveServer()
+     */
+    public void releaseServer(NakovForwardServer.ServerDescription aServer)
+    {
+        mLoadBalancer.releaseServer(aServer);
+        slotReleased();
+    }
+ 
+    /**
+     * Reserves a client connection to some of the servers like reserveServer()
+     * does it. If all the alive servers have reached their maximal connections
+     * count, waits in the admission queue until some connection slot is released
+     * or the admission timeout expires. Clients arriving while others are waiting
+     * are queued behind them. Used by the client threads.
+     * @return the reserved server or null if all the servers are dead (or tried)
+     * or busy.
+     */
+    public NakovForwardServer.ServerDescription reserveServerOrWait(InetAddress aClientAddress,
+            ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    throws InterruptedException
+    {
+        AdmissionQueue admissionQueue = mAdmissionQueue;
+        NakovForwardServer.ServerDescription server = null;
+        if (admissionQueue == null || admissionQueue.isEmpty())
+           server = reserveServer(aClientAddress, aTriedServers);
+        if (server != null || admissionQueue == null || !isAnyServerAlive(aTriedServers))
+           return server;
+ 
+        // All the servers are busy --> wait for a free connection slot
+        final long deadline = System.currentTimeMillis() + admissionQueue.getTimeoutMs();
+        final Semaphore slotReleased = new Semaphore(0);
+        AdmissionQueue.Waiter waiter = new AdmissionQueue.Waiter() {
+           public long getDeadline()
+           {
+               return deadline;
+           }
+           public void slotAvailable()
+           {
+               slotReleased.release();
+           }
+        };
+        while (admissionQueue.add(waiter)) {
+           // Some slot could be released before the waiter was queued
+           server = reserveServer(aClientAddress, aTriedServers);
+           long remaining = deadline - System.currentTimeMillis();
+           if (server != null || remaining <= 0 || !slotReleased.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+               if (!admissionQueue.remove(waiter))
+                   admissionQueue.slotReleased();  // Pass the notification to the next waiter
+               return server;
+           }
+        }
+        return null;  // The admission queue is full
+    }
+ 
+}
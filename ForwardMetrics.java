@@ -0,0 +1,195 @@
+/**
+ * ForwardMetrics holds the counters and latency distributions of the forwarded
+ * connections of a listener or of a destination server: accepted, rejected and
+ * forwarded connections, active connections, failed connects, bytes forwarded in
+ * each direction and histograms of connect latency, first byte latency (from the
+ * first client data, or from the connect if the server speaks first, to the first
+ * server data) and session duration. The counters are LongAdders and the
+ * histograms are lock-free, so recording never blocks the forwarding threads
+ * and reactors.
+ */
+ 
+import java.util.concurrent.atomic.LongAdder;
+ 
+public class ForwardMetrics
+{
+    private LongAdder mAcceptedConnections = new LongAdder();
+    private LongAdder mRejectedConnections = new LongAdder();
+    private LongAdder mForwardedConnections = new LongAdder();
+    private LongAdder mActiveConnections = new LongAdder();
+    private LongAdder mFailedConnects = new LongAdder();
+    private LongAdder mBytesToServer = new LongAdder();
+    private LongAdder mBytesToClient = new LongAdder();
+    private LatencyHistogram mConnectLatency = new LatencyHistogram();
+    private LatencyHistogram mFirstByteLatency = new LatencyHistogram();
+    private LatencyHistogram mSessionDuration = new LatencyHistogram();
+ 
+    /**
+     * Records a client connection accepted by the listener
+     */
+    public void clientAccepted()
+    {
+        mAcceptedConnections.increment();
+    }
+ 
+    /**
+     * Records a client connection closed because all the servers are down or busy
+     */
+    public void clientRejected()
+    {
+        mRejectedConnections.increment();
+    }
+ 
+    /**
+     * Records a connection established to a server (in given time in nanoseconds,
+     * negative if a pooled connection was used) and the start of its forwarding
+     */
+    public void connected(long aConnectNanos)
+    {
+        mForwardedConnections.increment();
+        mActiveConnections.increment();
+        if (aConnectNanos >= 0)
+           mConnectLatency.record(aConnectNanos);
+    }
+ 
+    /**
+     * Records a failed (or timed out) connect to a server
+     */
+    public void connectFailed()
+    {
+        mFailedConnects.increment();
+    }
+ 
+    /**
+     * Records the time (in nanoseconds) to the first data received from the server
+     */
+    public void firstByteReceived(long aLatencyNanos)
+    {
+        mFirstByteLatency.record(aLatencyNanos);
+    }
+ 
+    /**
+     * Records given number of bytes forwarded from the client to the server
+     */
+    public void bytesToServer(int aBytes)
+    {
+        mBytesToServer.add(aBytes);
+    }
+ 
+    /**
+     * Records given number of bytes forwarded from the server to the client
+     */
+    public void bytesToClient(int aBytes)
+    {
+        mBytesToClient.add(aBytes);
+    }
+ 
+    /**
+     * Records the end of a forwarded connection that lasted given time (in nanoseconds)
+     */
+    public void sessionFinished(long aDurationNanos)
+    {
+        mActiveConnections.decrement();
+        mSessionDuration.record(aDurationNanos);
+    }
+ 
+    /**
+     * Adds the counters and the distributions of given metrics to these metrics
+     * (used to report several servers together)
+     */
+    public void add(ForwardMetrics aMetrics)
+    {
+        mAcceptedConnections.add(aMetrics.getAcceptedConnections());
+        mRejectedConnections.add(aMetrics.getRejectedConnections());
+        mForwardedConnections.add(aMetrics.getForwardedConnections());
+        mActiveConnections.add(aMetrics.getActiveConnections());
+        mFailedConnects.add(aMetrics.getFailedConnects());
+        mBytesToServer.add(aMetrics.getBytesToServer());
+        mBytesToClient.add(aMetrics.getBytesToClient());
+        mConnectLatency.add(aMetrics.getConnectLatency());
+        mFirstByteLatency.add(aMetrics.getFirstByteLatency());
+        mSessionDuration.add(aMetrics.getSessionDuration());
+    }
+ 
+    /**
+     * @return the number of accepted client connections
+     */
+    public long getAcceptedConnections()
+    {
+        return mAcceptedConnections.sum();
+    }
+ 
+    /**
+     * @return the number of client connections rejected because all the servers
+     * were down or busy
+     */
+    public long getRejectedConnections()
+    {
+        return mRejectedConnections.sum();
+    }
+ 
+    /**
+     * @return the number of connections forwarded to a server
+     */
+    public long getForwardedConnections()
+    {
+        return mForwardedConnections.sum();
+    }
+ 
+    /**
+     * @return the number of connections being forwarded now
+     */
+    public long getActiveConnections()
+    {
+        return mActiveConnections.sum();
+    }
+ 
+    /**
+     * @return the number of failed connects to a server
+     */
+    public long getFailedConnects()
+    {
+        return mFailedConnects.sum();
+    }
+ 
+    /**
+     * @return the number of bytes forwarded from the clients to the servers
+     */
+    public long getBytesToServer()
+    {
+        return mBytesToServer.sum();
+    }
+ 
+    /**
+     * @return the number of bytes forwarded from the servers to the clients
+     */
+    public long getBytesToClient()
+    {
+        return mBytesToClient.sum();
+    }
+ 
+    /**
+     * @return the distribution of the times for connecting to a server
+     */
+    public LatencyHistogram getConnectLatency()
+    {
+        return mConnectLatency;
+    }
+ 
+    /**
+     * @return the distribution of the times to the first data from the server
+     */
+    public LatencyHistogram getFirstByteLatency()
+    {
+        return mFirstByteLatency;
+    }
+ 
+    /**
+     * @return the distribution of the durations of the forwarded connections
+     */
+    public LatencyHistogram getSessionDuration()
+    {
+        return mSessionDuration;
+    }
+ 
+}
@@ -0,0 +1,223 @@
+/**
+ * ForwardReactor is a reactor thread of the NIO forwarding engine. It owns a
+ * selector and serves many forwarded connections at once: connects them to the
+ * destination servers and copies the data in both directions with non-blocking
+ * reads and writes. Clients are handed to the reactor by the accepting thread.
+ * Other threads can run tasks on the reactor thread through execute().
+ */
+ 
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+ 
+public class ForwardReactor extends Thread
+{
+    private static final long DEADLINE_CHECK_INTERVAL_MS = 100;
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+    private Selector mSelector = null;
+    private BufferPool.LocalCache mBufferCache = null;
+    private ConcurrentLinkedQueue<NioForwardSession> mNewSessions = new ConcurrentLinkedQueue<NioForwardSession>();
+    private ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private LinkedHashSet<NioForwardSession> mWaitingSessions = new LinkedHashSet<NioForwardSession>();
+    private ArrayList<NioForwardSession> mDueSessions = new ArrayList<NioForwardSession>();
+    private long mLastDeadlineCheck = 0;
+ 
+    /**
+     * Creates a reactor thread with its own selector. NakovForwardServer object
+     * is needed for choosing destination servers, for buffers and for logging.
+     */
+    public ForwardReactor(NakovForwardServer aNakovForwardServer, int aReactorIndex)
+    throws IOException
+    {
+        super("ForwardReactor-" + aReactorIndex);
+        mNakovForwardServer = aNakovForwardServer;
+        mSelector = Selector.open();
+        mBufferCache = aNakovForwardServer.getBufferPool().createLocalCache();
+    }
+ 
+    /**
+     * Queues a client connection accepted by given listener for forwarding by
+     * this reactor and wakes up the reactor's selector. Can be called from any thread.
+     */
+    public void addClient(ForwardListener aListener, SocketChannel aClientChannel)
+    {
+        mNewSessions.add(new NioForwardSession(mNakovForwardServer, aListener, this, aClientChannel));
+        mSelector.wakeup();
+    }
+ 
+    /**
+     * Queues given task for running on the reactor thread and wakes up the
+     * reactor's selector. Can be called from any thread.
+     */
+    public void execute(Runnable aTask)
+    {
+        mTasks.add(aTask);
+        mSelector.wakeup();
+    }
+ 
+    /**
+     * @return the selector of this reactor
+     */
+    public Selector getSelector()
+    {
+        return mSelector;
+    }
+ 
+    /**
+     * @return the buffer cache of this reactor
+     */
+    public BufferPool.LocalCache getBufferCache()
+    {
+        return mBufferCache;
+    }
+ 
+    /**
+     * Starts watching given session for its deadline. Called by the session (on
+     * the reactor thread) when it starts connecting to a server or waiting for a
+     * free connection slot.
+     */
+    public void addWaitingSession(NioForwardSession aSession)
+    {
+        mWaitingSessions.add(aSession);
+    }
+ 
+    /**
+     * Stops watching given session for its deadline. Called by the session (on
+     * the reactor thread) when its connect completes or fails or when it stops
+     * waiting for a free connection slot.
+     */
+    public void removeWaitingSession(NioForwardSession aSession)
+    {
+        mWaitingSessions.remove(aSession);
+    }
+ 
+    /**
+     * Until stopped waits for ready channels and dispatches their events to the
+     * forward sessions attached to their selection keys. While some sessions
+     * are connecting or waiting for a free connection slot, wakes up at least
+     * once every DEADLINE_CHECK_INTERVAL_MS to check their deadlines.
+     */
+    public void run()
+    {
+        while (!interrupted()) {
+           try {
+               if (mWaitingSessions.isEmpty())
+                   mSelector.select();
+               else
+                   mSelector.select(getTimeToDeadlineCheck());
+           } catch (IOException ioe) {
+               ioe.printStackTrace();
+               continue;
+           }
+           startNewSessions();
+           runTasks();
+           checkDeadlines();
+           Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+           while (keys.hasNext()) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               NioForwardSession session = (NioForwardSession) key.attachment();
+               try {
+                   session.handleEvent(key);
+               } catch (IOException ioe) {
+                   // Read/write/connect failed --> connection is broken
+                   session.connectionBroken();
+               } catch (CancelledKeyException cke) {
+                   session.connectionBroken();
+               } catch (RuntimeException re) {
+                   sessionFailed(session, re);
+               }
+           }
+        }
+    }
+ 
+    /**
+     * @return milliseconds until the next check of the deadlines, at least 1
+     * (the selector treats 0 as no timeout)
+     */
+    private long getTimeToDeadlineCheck()
+    {
+        long sinceLastCheck = System.currentTimeMillis() - mLastDeadlineCheck;
+        if (sinceLastCheck < 0 || sinceLastCheck >= DEADLINE_CHECK_INTERVAL_MS)
+           return 1;
+        return DEADLINE_CHECK_INTERVAL_MS - sinceLastCheck;
+    }
+ 
+    /**
+     * Notifies the waiting sessions whose deadline has passed. The deadlines are
+     * checked at most once every DEADLINE_CHECK_INTERVAL_MS, not on every wake-up
+     * of the selector, because a busy reactor wakes up far more often. The sessions
+     * are copied to a reused list before the check, because a session may stop or
+     * start waiting again while it is checked.
+     */
+    private void checkDeadlines()
+    {
+        if (mWaitingSessions.isEmpty())
+           return;
+        long now = System.currentTimeMillis();
+        if (now - mLastDeadlineCheck < DEADLINE_CHECK_INTERVAL_MS && now >= mLastDeadlineCheck)
+           return;
+        mLastDeadlineCheck = now;
+        mDueSessions.addAll(mWaitingSessions);
+        try {
+           for (int i=0; i<mDueSessions.size(); i++)
+               mDueSessions.get(i).checkDeadline(now);
+        } finally {
+           mDueSessions.clear();
+        }
+    }
+ 
+    /**
+     * Runs the tasks queued by execute()
+     */
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+           try {
+               task.run();
+           } catch (RuntimeException re) {
+               // A failed task must not stop the reactor
+               re.printStackTrace();
+           }
+        }
+    }
+ 
+    /**
+     * Starts connecting the forward session of each newly queued client to some
+     * of the destination servers
+     */
+    private void startNewSessions()
+    {
+        NioForwardSession session;
+        while ((session = mNewSessions.poll()) != null) {
+           try {
+               session.start();
+           } catch (RuntimeException re) {
+               sessionFailed(session, re);
+           }
+        }
+    }
+ 
+    /**
+     * Closes given session after an unexpected error, so a single broken session
+     * can not stop the reactor with all its other sessions
+     */
+    private void sessionFailed(NioForwardSession aSession, RuntimeException aError)
+    {
+        aError.printStackTrace();
+        try {
+           aSession.connectionBroken();
+        } catch (RuntimeException re) {
+           re.printStackTrace();
+        }
+    }
+ 
+}
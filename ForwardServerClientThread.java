@@ -3,32 +3,47 @@
  * finds suitable server from the server pool, connects to it and starts
  * the TCP forwarding between given client and its assigned server. After
  * the forwarding is failed and the two threads are stopped, closes the sockets.
+ * ForwardServerClientThread and its ForwardThreads are started by the server
+ * either as platform threads or as virtual threads.
  */
  
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
  
-public class ForwardServerClientThread extends Thread
+public class ForwardServerClientThread implements Runnable
 {
     private NakovForwardServer mNakovForwardServer = null;
+    private ForwardListener mListener = null;
     private NakovForwardServer.ServerDescription mServer = null;
+    private ArrayList<NakovForwardServer.ServerDescription> mTriedServers =
+        new ArrayList<NakovForwardServer.ServerDescription>();
     private Socket mClientSocket = null;
     private Socket mServerSocket = null;
     private boolean mBothConnectionsAreAlive = false;
     private String mClientHostPort;
     private String mServerHostPort;
+    private final ReentrantLock mConnectionLock = new ReentrantLock();
+    private ForwardThread mClientForward = null;
+    private ForwardThread mServerForward = null;
+    private long mConnectedNanos = 0;
+    private volatile long mFirstRequestNanos = 0;
  
     /**
-     * Creates a client thread for handling clients of NakovForwardServer.
-     * A client socket should be connected and passed to this constructor.
-     * A server socket is created later by run() method.
+     * Creates a client thread for handling clients of NakovForwardServer accepted
+     * by given listener. A client socket should be connected and passed to this
+     * constructor. A server socket is created later by run() method.
      */
-    public ForwardServerClientThread(NakovForwardServer aNakovForwardServer, Socket aClientSocket)
+    public ForwardServerClientThread(NakovForwardServer aNakovForwardServer, ForwardListener aListener,
+            Socket aClientSocket)
     {
         mNakovForwardServer = aNakovForwardServer;
+        mListener = aListener;
         mClientSocket = aClientSocket;
     }
  
@@ -42,104 +57,175 @@ public class ForwardServerClientThread extends Thread
     {
         try {
            mClientHostPort = mClientSocket.getInetAddress().getHostAddress() + ":" + mClientSocket.getPort();
+           mNakovForwardServer.log("Accepted client from " + mClientHostPort);
+           mListener.getMetrics().clientAccepted();
  
            // Create a new socket connection to one of the servers from the list
            mServerSocket = createServerSocket();
-           if (mServerSocket == null) {  // If all the servers are down
-               System.out.println("Can not establish connection for client " +
-                   mClientHostPort + ". All the servers are down.");
+           if (mServerSocket == null) {  // If all the servers are down or busy
+               mListener.getMetrics().clientRejected();
+               System.out.println("Can not establish connection for client " + mClientHostPort +
+                   (mListener.isAnyServerAlive(mTriedServers) ? ". All the servers are busy." : ". All the servers are down."));
                try { mClientSocket.close(); } catch (IOException e) {}
                return;
            }
  
-           // Obtain input and output streams of server and client
-           InputStream clientIn = mClientSocket.getInputStream();
-           OutputStream clientOut = mClientSocket.getOutputStream();
-           InputStream serverIn = mServerSocket.getInputStream();
-           OutputStream serverOut = mServerSocket.getOutputStream();
- 
+           mConnectedNanos = System.nanoTime();
            mServerHostPort = mServer.host + ":" + mServer.port;
            mNakovForwardServer.log("TCP Forwarding  " + mClientHostPort + " <--> " + mServerHostPort + "  started.");
  
            // Start forwarding of socket data between server and client
-           ForwardThread clientForward = new ForwardThread(this, clientIn, serverOut);
-           ForwardThread serverForward = new ForwardThread(this, serverIn, clientOut);
+           ForwardThread clientForward;
+           ForwardThread serverForward;
+           SocketChannel clientChannel = mClientSocket.getChannel();
+           SocketChannel serverChannel = mServerSocket.getChannel();
+           if (clientChannel != null && serverChannel != null) {
+               // Forward between the channels, keeping the data out of the Java heap
+               BufferPool bufferPool = mNakovForwardServer.getBufferPool();
+               clientForward = new ForwardThread(this, clientChannel, serverChannel,
+                   bufferPool, mNakovForwardServer.createBufferSizer());
+               serverForward = new ForwardThread(this, serverChannel, clientChannel,
+                   bufferPool, mNakovForwardServer.createBufferSizer());
+           } else {
+               // Obtain input and output streams of server and client
+               InputStream clientIn = mClientSocket.getInputStream();
+               OutputStream clientOut = mClientSocket.getOutputStream();
+               InputStream serverIn = mServerSocket.getInputStream();
+               OutputStream serverOut = mServerSocket.getOutputStream();
+               clientForward = new ForwardThread(this, clientIn, serverOut, mNakovForwardServer.createBufferSizer());
+               serverForward = new ForwardThread(this, serverIn, clientOut, mNakovForwardServer.createBufferSizer());
+           }
+           mClientForward = clientForward;
+           mServerForward = serverForward;
            mBothConnectionsAreAlive = true;
-           clientForward.start();
-           serverForward.start();
+           mNakovForwardServer.startThread(clientForward);
+           mNakovForwardServer.startThread(serverForward);
  
         } catch (IOException ioe) {
            ioe.printStackTrace();
         }
     }
  
+    /**
+     * firstDataReceived() method is called by forwarding child threads when they
+     * receive their first data. The time from the first client data (or from the
+     * connect if the server speaks first) to the first server data is recorded as
+     * response latency (first byte latency) of the server.
+     */
+    public void firstDataReceived(ForwardThread aForwardThread)
+    {
+        long now = System.nanoTime();
+        if (aForwardThread == mServerForward) {
+           long requestNanos = (mFirstRequestNanos != 0) ? mFirstRequestNanos : mConnectedNanos;
+           mServer.responseLatency.record(now - requestNanos);
+           mListener.getMetrics().firstByteReceived(now - requestNanos);
+           mServer.metrics.firstByteReceived(now - requestNanos);
+        } else {
+           mFirstRequestNanos = now;
+        }
+    }
+ 
+    /**
+     * dataForwarded() method is called by forwarding child threads after they
+     * forward given number of bytes. The bytes are counted in the metrics of the
+     * listener and the server without locking.
+     */
+    public void dataForwarded(ForwardThread aForwardThread, int aBytes)
+    {
+        if (aForwardThread == mClientForward) {
+           mListener.getMetrics().bytesToServer(aBytes);
+           mServer.metrics.bytesToServer(aBytes);
+        } else {
+           mListener.getMetrics().bytesToClient(aBytes);
+           mServer.metrics.bytesToClient(aBytes);
+        }
+    }
+ 
     /**
      * connectionBroken() method is called by forwarding child threads to notify
      * this thread (their parent thread) that one of the connections (server or client)
      * is broken (a read/write failure occured). This method disconnects both server
-     * and client sockets causing both threads to stop forwarding.
+     * and client sockets causing both threads to stop forwarding. The outcome of
+     * the session, seen by the thread that noticed the broken connection first, is
+     * reported for the outlier detection. A lock is used
+     * instead of synchronized because closing the sockets blocks and a virtual
+     * thread blocking inside a synchronized method pins its carrier thread.
      */
-    public synchronized void connectionBroken()
+    public void connectionBroken(ForwardThread aForwardThread)
     {
-        if (mBothConnectionsAreAlive) {
-           // One of the connections is broken. Close the other connection and stop forwarding
-           // Closing these socket connections will close their input/output streams
-           // and that way will stop the threads that read from these streams
-           try { mServerSocket.close(); } catch (IOException e) {}
-           try { mClientSocket.close(); } catch (IOException e) {}
+        mConnectionLock.lock();
+        try {
+           if (mBothConnectionsAreAlive) {
+               // One of the connections is broken. Close the other connection and stop forwarding
+               // Closing these socket connections will close their input/output streams
+               // and that way will stop the threads that read from these streams
+               try { mServerSocket.close(); } catch (IOException e) {}
+               try { mClientSocket.close(); } catch (IOException e) {}
  
-           mBothConnectionsAreAlive = false;
-           mServer.clientsConectedCount--;
+               mBothConnectionsAreAlive = false;
+               mListener.releaseServer(mServer);
+               long durationNanos = System.nanoTime() - mConnectedNanos;
+               mListener.getMetrics().sessionFinished(durationNanos);
+               mServer.metrics.sessionFinished(durationNanos);
+               boolean fromServer = (aForwardThread == mServerForward);
+               mNakovForwardServer.reportSessionFinished(mServer,
+                   fromServer ? aForwardThread.isInputFailed() : aForwardThread.isOutputFailed(),
+                   fromServer && !aForwardThread.isInputFailed() && !aForwardThread.isOutputFailed(),
+                   mClientForward.isDataReceived(), mServerForward.isDataReceived());
  
-           mNakovForwardServer.log("TCP Forwarding  " + mClientHostPort + " <--> " + mServerHostPort + "  stopped.");
+               mNakovForwardServer.log("TCP Forwarding  " + mClientHostPort + " <--> " + mServerHostPort + "  stopped.");
+           }
+        } finally {
+           mConnectionLock.unlock();
         }
     }
  
     /**
      * @return a new socket connected to some of the servers in the destination
      * servers list. Sequentially a connection to the least loaded server from
-     * the list is tried to be established. If connecting to some alive server
-     * fail, this server it marked as dead and next alive server is tried. If all
-     * the servers are dead, null is returned. Thus if at least one server is alive,
+     * the list is reserved and taken from the server's pool of idle connections or is tried
+     * to be established. If connecting to some alive server
+     * fail, this failure is reported (the server becomes suspect or dead, see
+     * ServerHealth) and next alive server is tried - the servers already tried
+     * for this client are skipped even if still alive. If all
+     * the servers are dead or tried, null is returned. Thus if at least one server is alive,
      * a connection will be established (of course after some delay) and the system
      * will not fail (it is fault tolerant). Dead servers can be marked as alive if
-     * revived, but this is done later by check alive thread.
+     * revived, but this is done later by check alive thread. If all the alive
+     * servers have reached their maximal connections count, the client waits in
+     * the admission queue and null is returned if no slot is released in time.
      */
     private Socket createServerSocket() throws IOException
     {
         while (true) {
-           mServer = getServerWithMinimalLoad();
-           if (mServer == null)  // All the servers are down
+           try {
+               mServer = mListener.reserveServerOrWait(mClientSocket.getInetAddress(), mTriedServers);
+           } catch (InterruptedException ie) {
+               return null;
+           }
+           if (mServer == null)  // All the servers are down or busy
                return null;
            try {
-               Socket socket = new Socket(mServer.host, mServer.port);
-               mServer.clientsConectedCount++;
-               return socket;
+               SocketChannel channel = mNakovForwardServer.takePooledConnection(mServer);
+               long connectNanos = -1;  // A pooled connection is used
+               if (channel == null) {
+                   long connectStartNanos = System.nanoTime();
+                   channel = mNakovForwardServer.connectToServer(mServer);
+                   connectNanos = System.nanoTime() - connectStartNanos;
+                   mServer.connectLatency.record(connectNanos);
+               }
+               mNakovForwardServer.reportServerSuccess(mServer);
+               mListener.getMetrics().connected(connectNanos);
+               mServer.metrics.connected(connectNanos);
+               return channel.socket();
            } catch (IOException ioe) {
-               mServer.isAlive = false;
+               mListener.getMetrics().connectFailed();
+               mServer.metrics.connectFailed();
+               mListener.releaseServer(mServer);
+               mNakovForwardServer.reportServerFailure(mServer);
+               mTriedServers.add(mServer);
            }
         }
     }
  
-    /**
-     * @return the least loaded alive server from the server list if load balancing
-     * is enabled or first alive server from the list if load balancing algorithm is
-     * disabled or null if all the servers in the list are dead.
-     */
-    private NakovForwardServer.ServerDescription getServerWithMinimalLoad()
-    {
-        NakovForwardServer.ServerDescription minLoadServer = null;
-        NakovForwardServer.ServerDescription[] servers = mNakovForwardServer.getServersList();
-        for (int i=0; i<servers.length; i++) {
-           if (servers[i].isAlive) {
-               if ((minLoadServer==null) || (servers[i].clientsConectedCount < minLoadServer.clientsConectedCount))
-                   minLoadServer = servers[i];
-               // If load balancing is disabled, return first alive server
-               if (!mNakovForwardServer.isLoadBalancingEnabled())
-                   break;
-            }
-        }
-        return minLoadServer;
-    }
- 
 }
@@ -3,32 +3,61 @@
  * and a socket output stream (destination). It reads the input stream and forwards
  * everything to the output stream. If some of the streams fails, the forwarding
  * is stopped and the parent thread is notified to close all its connections.
+ * When both sockets have channels, the data is forwarded between the channels
+ * through a direct (off-heap) buffer from the server's buffer pool, so the payload
+ * is not copied into the Java heap and back. Otherwise the socket streams and a
+ * heap buffer are used. The buffer size is adapted to the traffic by an
+ * AdaptiveBufferSizer.
  */
  
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
  
-public class ForwardThread extends Thread
+public class ForwardThread implements Runnable
 {
-private static final int READ_BUFFER_SIZE = 8192;
- 
     InputStream mInputStream = null;
     OutputStream mOutputStream = null;
+    ReadableByteChannel mInputChannel = null;
+    WritableByteChannel mOutputChannel = null;
+    BufferPool mBufferPool = null;
+    AdaptiveBufferSizer mBufferSizer = null;
+    volatile boolean mDataReceived = false;
+    volatile boolean mInputFailed = false;
+    volatile boolean mOutputFailed = false;
  
     ForwardServerClientThread mParent = null;
  
     /**
      * Creates a new traffic forward thread specifying its input stream,
-     * output stream and parent thread
+     * output stream, parent thread and buffer sizer
      */
-    public ForwardThread(ForwardServerClientThread aParent, InputStream aInputStream, OutputStream aOutputStream)
+    public ForwardThread(ForwardServerClientThread aParent, InputStream aInputStream,
+            OutputStream aOutputStream, AdaptiveBufferSizer aBufferSizer)
     {
+        mBufferSizer = aBufferSizer;
         mInputStream = aInputStream;
         mOutputStream = aOutputStream;
         mParent = aParent;
     }
  
+    /**
+     * Creates a new traffic forward thread specifying its input channel,
+     * output channel, parent thread, the pool to take its buffer from and buffer sizer
+     */
+    public ForwardThread(ForwardServerClientThread aParent, ReadableByteChannel aInputChannel,
+            WritableByteChannel aOutputChannel, BufferPool aBufferPool, AdaptiveBufferSizer aBufferSizer)
+    {
+        mBufferSizer = aBufferSizer;
+        mBufferPool = aBufferPool;
+        mInputChannel = aInputChannel;
+        mOutputChannel = aOutputChannel;
+        mParent = aParent;
+    }
+ 
     /**
      * Runs the thread. Until it is possible, reads the input stream and puts read
      * data in the output stream. If reading can not be done (due to exception or
@@ -36,19 +65,121 @@ private static final int READ_BUFFER_SIZE = 8192;
      */
     public void run()
     {
-        byte[] buffer = new byte[READ_BUFFER_SIZE];
         try {
-			while (true) {
-				int bytesRead = mInputStream.read(buffer);
-				if (bytesRead == -1)
-				   break; // End of stream is reached --> exit the thread
-				mOutputStream.write(buffer, 0, bytesRead);
-			}
+           if (mInputChannel != null)
+               forwardChannels();
+           else
+               forwardStreams();
         } catch (IOException e) {
            // Read/write failed --> connection is broken --> exit the thread
         }
  
         // Notify parent thread that the connection is broken and forwarding should stop
-		mParent.connectionBroken();
-    } 
+		mParent.connectionBroken(this);
+    }
+ 
+    /**
+     * Forwards the input stream to the output stream through a heap buffer
+     */
+    private void forwardStreams() throws IOException
+    {
+        byte[] buffer = new byte[mBufferSizer.getSize()];
+		while (true) {
+			int bytesRead;
+			try {
+			   bytesRead = mInputStream.read(buffer);
+			} catch (IOException ioe) {
+			   mInputFailed = true;
+			   throw ioe;
+			}
+			if (bytesRead == -1)
+			   break; // End of stream is reached --> exit the thread
+			notifyFirstDataReceived();
+			try {
+			   mOutputStream.write(buffer, 0, bytesRead);
+			} catch (IOException ioe) {
+			   mOutputFailed = true;
+			   throw ioe;
+			}
+			mParent.dataForwarded(this, bytesRead);
+			mBufferSizer.record(bytesRead, buffer.length);
+			if (mBufferSizer.getSize() != buffer.length)
+			   buffer = new byte[mBufferSizer.getSize()];
+		}
+    }
+ 
+    /**
+     * Forwards the input channel to the output channel through a pooled direct buffer
+     */
+    private void forwardChannels() throws IOException
+    {
+        ByteBuffer buffer = mBufferPool.acquire(mBufferSizer.getSize());
+        try {
+           while (true) {
+               int bytesRead;
+               try {
+                   bytesRead = mInputChannel.read(buffer);
+               } catch (IOException ioe) {
+                   mInputFailed = true;
+                   throw ioe;
+               }
+               if (bytesRead == -1)
+                   break; // End of stream is reached --> exit the thread
+               notifyFirstDataReceived();
+               buffer.flip();
+               try {
+                   while (buffer.hasRemaining())
+                       mOutputChannel.write(buffer);
+               } catch (IOException ioe) {
+                   mOutputFailed = true;
+                   throw ioe;
+               }
+               mParent.dataForwarded(this, bytesRead);
+               buffer.clear();
+               mBufferSizer.record(bytesRead, buffer.capacity());
+               if (mBufferSizer.getSize() != buffer.capacity()) {
+                   // Switch to a buffer with the new size
+                   mBufferPool.release(buffer);
+                   buffer = mBufferPool.acquire(mBufferSizer.getSize());
+               }
+           }
+        } finally {
+           mBufferPool.release(buffer);
+        }
+    }
+ 
+    /**
+     * @return true if any data was received from the input
+     */
+    public boolean isDataReceived()
+    {
+        return mDataReceived;
+    }
+ 
+    /**
+     * @return true if reading from the input failed (e.g. the connection was reset)
+     */
+    public boolean isInputFailed()
+    {
+        return mInputFailed;
+    }
+ 
+    /**
+     * @return true if writing to the output failed
+     */
+    public boolean isOutputFailed()
+    {
+        return mOutputFailed;
+    }
+ 
+    /**
+     * Notifies the parent thread when the first data is received from the input
+     */
+    private void notifyFirstDataReceived()
+    {
+        if (!mDataReceived) {
+           mDataReceived = true;
+           mParent.firstDataReceived(this);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+/**
+ * HealthCheck is an application-level check of a destination server: a payload
+ * sent to the server after connecting and the expected response - a prefix of
+ * the response or a regular expression found in it. A server that accepts TCP
+ * connections but does not answer as expected is considered dead. The payload
+ * and the expected prefix are strings whose characters are the bytes (the escapes
+ * of the properties file like \r, \n and \u0000 can be used).
+ */
+ 
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+ 
+public class HealthCheck
+{
+    public static final int MATCHED = 0;
+    public static final int NOT_MATCHED = 1;
+    public static final int NEED_MORE_DATA = 2;
+    public static final int MAX_RESPONSE_SIZE = 4096;
+    private static final String BYTES_ENCODING = "ISO-8859-1";
+ 
+    private byte[] mSendData;
+    private byte[] mExpectedPrefix;
+    private Pattern mExpectedPattern;
+ 
+    /**
+     * Creates a health check with given payload (can be empty) and expected
+     * response prefix or regular expression (one of them can be null)
+     */
+    public HealthCheck(String aSend, String aExpectPrefix, String aExpectRegex)
+    throws UnsupportedEncodingException
+    {
+        mSendData = (aSend != null) ? aSend.getBytes(BYTES_ENCODING) : new byte[0];
+        if (aExpectPrefix != null)
+           mExpectedPrefix = aExpectPrefix.getBytes(BYTES_ENCODING);
+        if (aExpectRegex != null)
+           mExpectedPattern = Pattern.compile(aExpectRegex);
+    }
+ 
+    /**
+     * @return the payload to send to the server (can be empty)
+     */
+    public byte[] getSendData()
+    {
+        return mSendData;
+    }
+ 
+    /**
+     * @return true if a response from the server is expected
+     */
+    public boolean isResponseExpected()
+    {
+        return mExpectedPrefix != null || mExpectedPattern != null;
+    }
+ 
+    /**
+     * Matches the response received so far against the expected one.
+     * @param aEndOfStream true if the server has closed the connection
+     * @return MATCHED, NOT_MATCHED or NEED_MORE_DATA (if the response received so
+     * far is not enough to decide)
+     */
+    public int match(byte[] aResponse, int aLength, boolean aEndOfStream)
+    {
+        int result = MATCHED;
+        if (mExpectedPrefix != null) {
+           for (int i=0; i<Math.min(aLength, mExpectedPrefix.length); i++)
+               if (aResponse[i] != mExpectedPrefix[i])
+                   return NOT_MATCHED;
+           if (aLength < mExpectedPrefix.length)
+               result = NEED_MORE_DATA;
+        }
+        if (result == MATCHED && mExpectedPattern != null) {
+           try {
+               String response = new String(aResponse, 0, aLength, BYTES_ENCODING);
+               if (!mExpectedPattern.matcher(response).find())
+                   result = NEED_MORE_DATA;
+           } catch (UnsupportedEncodingException uee) {
+               return NOT_MATCHED;
+           }
+        }
+        if (result == NEED_MORE_DATA && (aEndOfStream || aLength >= MAX_RESPONSE_SIZE))
+           return NOT_MATCHED;
+        return result;
+    }
+ 
+}
@@ -0,0 +1,70 @@
+/**
+ * LatencyHistogram is a distribution of durations (connect latency, session
+ * duration, etc.) in fixed buckets from 100 microseconds to 1 hour, exported in
+ * Prometheus histogram format. Recording a value costs a binary search in the
+ * bucket bounds and two atomic additions, so it takes no locks and can be done
+ * by any number of threads on the forwarding path.
+ */
+ 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+ 
+public class LatencyHistogram
+{
+    private static final String[] BUCKET_BOUNDS = {
+        "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+        "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60", "300", "1800", "3600"};
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+    static {
+        for (int i=0; i<BUCKET_BOUNDS.length; i++)
+           BUCKET_BOUNDS_NANOS[i] = Math.round(Double.parseDouble(BUCKET_BOUNDS[i]) * 1000000000L);
+    }
+ 
+    private AtomicLongArray mBucketCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private LongAdder mSumNanos = new LongAdder();
+ 
+    /**
+     * Records given duration (in nanoseconds)
+     */
+    public void record(long aNanos)
+    {
+        if (aNanos < 0)
+           aNanos = 0;
+        int index = Arrays.binarySearch(BUCKET_BOUNDS_NANOS, aNanos);
+        if (index < 0)
+           index = -index - 1;  // The first bound greater than the value (or +Inf)
+        mBucketCounts.incrementAndGet(index);
+        mSumNanos.add(aNanos);
+    }
+ 
+    /**
+     * Adds the recorded durations of given histogram to this one
+     */
+    public void add(LatencyHistogram aHistogram)
+    {
+        for (int i=0; i<mBucketCounts.length(); i++)
+           mBucketCounts.addAndGet(i, aHistogram.mBucketCounts.get(i));
+        mSumNanos.add(aHistogram.mSumNanos.sum());
+    }
+ 
+    /**
+     * Appends the histogram samples (cumulative buckets in seconds, sum and count)
+     * with given metric name and labels in Prometheus text format
+     */
+    public void appendTo(StringBuffer aText, String aName, String aLabels)
+    {
+        String labels = (aLabels.length() > 0) ? aLabels + "," : "";
+        long count = 0;
+        for (int i=0; i<mBucketCounts.length(); i++) {
+           count += mBucketCounts.get(i);
+           String bound = (i < BUCKET_BOUNDS.length) ? BUCKET_BOUNDS[i] : "+Inf";
+           aText.append(aName).append("_bucket{").append(labels).append("le=\"").append(bound).append("\"} ");
+           aText.append(count).append('\n');
+        }
+        aText.append(aName).append("_sum{").append(aLabels).append("} ");
+        aText.append(mSumNanos.sum() / 1000000000.0).append('\n');
+        aText.append(aName).append("_count{").append(aLabels).append("} ").append(count).append('\n');
+    }
+ 
+}
@@ -0,0 +1,307 @@
+/**
+ * LoadBalancer selects the destination server for a new client and reserves a
+ * client connection to it. The selection and the reservation are a single atomic
+ * step: the selection reads the connections counter of each server once and the
+ * counter of the selected server is increased only if it still has the value seen
+ * by the selection (CAS), otherwise the selection is repeated. Thus concurrent
+ * clients can not all pick the same "least loaded" server and the counters never
+ * drift. Supported algorithms are:
+ *     - first alive server from the list (load balancing is disabled)
+ *     - least connections: the alive server with minimal connections count
+ *     - power of two choices: the less loaded of two random alive servers, which
+ *       selects in constant time and herds much less when many clients arrive at once
+ *     - consistent hash: the server the client IP address is mapped to by a Maglev
+ *       lookup table, so a client always goes to the same server while it is alive
+ *       and not drained, and only ~1/N of the clients move when a server dies,
+ *       revives, is drained or is enabled again
+ *     - latency: the alive server with minimal (average latency x connections),
+ *       where the latency is the sum of the moving averages of the server's connect
+ *       time and time to first response byte, so slow (e.g. GC-pausing) servers
+ *       get fewer clients
+ * The load of a server is its connections count (including the new client)
+ * divided by its weight, so servers with bigger capacity get more clients.
+ * Servers with weight 0 get no clients. A server revived after being dead starts
+ * with a small weight that grows to its full weight during the slow start window.
+ * A server having its maximal connections count (if limited) gets no new clients.
+ * The servers a client has already failed to connect to are skipped when a
+ * server is reserved for it again, so it fails over to the next server at once
+ * even while the failed server is still alive (suspect). A client failing over
+ * in consistent hash mode gets the least loaded of the servers not tried yet.
+ */
+ 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+ 
+public class LoadBalancer
+{
+    public static final int FIRST_ALIVE = 0;
+    public static final int LEAST_CONNECTIONS = 1;
+    public static final int POWER_OF_TWO_CHOICES = 2;
+    public static final int CONSISTENT_HASH = 3;
+    public static final int LATENCY = 4;
+ 
+    private static final int RANDOM_PICK_ATTEMPTS = 8;
+    private static final double MIN_LATENCY_NANOS = 1000;
+ 
+    private int mAlgorithm;
+    private volatile MaglevHashTable mHashTable = null;
+ 
+    /**
+     * Selection is a server selected for a new client together with its
+     * connections count seen by the selection
+     */
+    private static class Selection
+    {
+        NakovForwardServer.ServerDescription mServer;
+        int mLoad;
+ 
+        Selection(NakovForwardServer.ServerDescription aServer, int aLoad)
+        {
+            mServer = aServer;
+            mLoad = aLoad;
+        }
+    }
+ 
+    /**
+     * Creates a load balancer using given algorithm
+     */
+    public LoadBalancer(int aAlgorithm)
+    {
+        mAlgorithm = aAlgorithm;
+    }
+ 
+    /**
+     * @return the load balancing algorithm specified by given LoadBalancing property
+     * value: Yes/True/1/Enable/Enabled/LeastConn for least connections, P2C for power
+     * of two choices, Hash for consistent hash, Latency (or EWMA) for latency and
+     * anything else for first alive server.
+     */
+    public static int parseAlgorithm(String aLoadBalancing)
+    {
+        String value = aLoadBalancing.trim().toLowerCase();
+        if (value.equals("yes") || value.equals("true") || value.equals("1") ||
+                value.equals("enable") || value.equals("enabled") || value.equals("leastconn"))
+           return LEAST_CONNECTIONS;
+        if (value.equals("p2c"))
+           return POWER_OF_TWO_CHOICES;
+        if (value.equals("hash"))
+           return CONSISTENT_HASH;
+        if (value.equals("latency") || value.equals("ewma"))
+           return LATENCY;
+        return FIRST_ALIVE;
+    }
+ 
+    /**
+     * @return the load balancing algorithm of this load balancer
+     */
+    public int getAlgorithm()
+    {
+        return mAlgorithm;
+    }
+ 
+    /**
+     * @return human readable name of the load balancing algorithm
+     */
+    public String getAlgorithmName()
+    {
+        switch (mAlgorithm) {
+           case LEAST_CONNECTIONS: return "least connections";
+           case POWER_OF_TWO_CHOICES: return "power of two choices";
+           case CONSISTENT_HASH: return "consistent hash of client address";
+           case LATENCY: return "least latency x connections";
+           default: return "first alive server";
+        }
+    }
+ 
+    /**
+     * Selects a server from given list for given client by the load balancing
+     * algorithm and reserves a client connection to it. The servers in given
+     * list of tried servers (null if none) are skipped. The reservation should be
+     * released by releaseServer() when the client is disconnected or the connect fails.
+     * @return the reserved server or null if all the servers in the list are dead,
+     * tried or have reached their maximal connections count.
+     */
+    public NakovForwardServer.ServerDescription reserveServer(NakovForwardServer.ServerDescription[] aServers,
+            InetAddress aClientAddress, ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        boolean failingOver = (aTriedServers != null && !aTriedServers.isEmpty());
+        if (mAlgorithm == CONSISTENT_HASH && !failingOver)
+           return reserveServerByHash(aServers, aClientAddress);
+        while (true) {
+           Selection selection;
+           if (mAlgorithm == POWER_OF_TWO_CHOICES)
+               selection = selectOfTwoRandomServers(aServers, aTriedServers);
+           else
+               selection = selectServerWithMinimalLoad(aServers, aTriedServers);
+           if (selection == null)
+               return null;
+           NakovForwardServer.ServerDescription server = selection.mServer;
+           if (server.isAlive && server.clientsConectedCount.compareAndSet(selection.mLoad, selection.mLoad + 1))
+               return server;
+           // Another client has reserved or released a connection meanwhile --> select again
+        }
+    }
+ 
+    /**
+     * Releases a client connection reserved by reserveServer()
+     */
+    public void releaseServer(NakovForwardServer.ServerDescription aServer)
+    {
+        aServer.clientsConectedCount.decrementAndGet();
+    }
+ 
+    /**
+     * Reserves a client connection to the server given client address is mapped
+     * to by the consistent hash table. The load of the server does not matter.
+     */
+    private NakovForwardServer.ServerDescription reserveServerByHash(NakovForwardServer.ServerDescription[] aServers,
+            InetAddress aClientAddress)
+    {
+        while (true) {
+           NakovForwardServer.ServerDescription server = getHashTable(aServers).lookup(aClientAddress);
+           if (server == null)
+               return null;
+           int load = server.clientsConectedCount.incrementAndGet();
+           if (server.maxConnections > 0 && load > server.maxConnections) {
+               // The server has no free connection slots --> the client should wait
+               server.clientsConectedCount.decrementAndGet();
+               return null;
+           }
+           if (MaglevHashTable.isMapped(server))
+               return server;
+           // The server has died or has been drained meanwhile --> the table will be rebuilt
+           server.clientsConectedCount.decrementAndGet();
+        }
+    }
+ 
+    /**
+     * @return the consistent hash table for the alive and not drained servers from
+     * given list. The table is rebuilt only when the set of these servers (or their
+     * weights) has changed.
+     */
+    private MaglevHashTable getHashTable(NakovForwardServer.ServerDescription[] aServers)
+    {
+        MaglevHashTable table = mHashTable;
+        if (table != null && table.isBuiltFor(aServers))
+           return table;
+        synchronized (this) {
+           table = mHashTable;
+           if (table == null || !table.isBuiltFor(aServers)) {
+               ArrayList<NakovForwardServer.ServerDescription> mappedServers =
+                   new ArrayList<NakovForwardServer.ServerDescription>();
+               for (int i=0; i<aServers.length; i++)
+                   if (MaglevHashTable.isMapped(aServers[i]))
+                       mappedServers.add(aServers[i]);
+               table = new MaglevHashTable(mappedServers.toArray(new NakovForwardServer.ServerDescription[0]));
+               mHashTable = table;
+           }
+           return table;
+        }
+    }
+ 
+    /**
+     * @return the least loaded available server from the list if least connections
+     * algorithm is used or first available server from the list otherwise or null
+     * if no server in the list is available. The tried servers (if given) are
+     * skipped. The connections count of each server is read once and the selected
+     * server is returned with its count.
+     */
+    private Selection selectServerWithMinimalLoad(NakovForwardServer.ServerDescription[] aServers,
+            ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        Selection minLoadSelection = null;
+        for (int i=0; i<aServers.length; i++) {
+           int load = aServers[i].clientsConectedCount.get();
+           if (isAvailable(aServers[i], load) && !isTried(aServers[i], aTriedServers)) {
+               if ((minLoadSelection==null) ||
+                       isLessLoaded(aServers[i], load, minLoadSelection.mServer, minLoadSelection.mLoad))
+                   minLoadSelection = new Selection(aServers[i], load);
+               // If load balancing is disabled, use first alive server
+               if (mAlgorithm == FIRST_ALIVE)
+                   break;
+           }
+        }
+        return minLoadSelection;
+    }
+ 
+    /**
+     * @return the less loaded of two randomly chosen alive servers. If two alive
+     * servers are not found in a few random picks (most servers are dead), the
+     * least loaded alive server is selected by scanning the whole list. The tried
+     * servers (if given) are skipped. The selected server is returned with its
+     * connections count seen by the selection.
+     */
+    private Selection selectOfTwoRandomServers(NakovForwardServer.ServerDescription[] aServers,
+            ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        if (aServers.length < 2)
+           return selectServerWithMinimalLoad(aServers, aTriedServers);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Selection first = null;
+        for (int attempt=0; attempt<RANDOM_PICK_ATTEMPTS; attempt++) {
+           NakovForwardServer.ServerDescription server = aServers[random.nextInt(aServers.length)];
+           int load = server.clientsConectedCount.get();
+           if (!isAvailable(server, load) || isTried(server, aTriedServers) ||
+                   (first != null && server == first.mServer))
+               continue;
+           if (first == null) {
+               first = new Selection(server, load);
+               continue;
+           }
+           return isLessLoaded(server, load, first.mServer, first.mLoad) ? new Selection(server, load) : first;
+        }
+        return selectServerWithMinimalLoad(aServers, aTriedServers);
+    }
+ 
+    /**
+     * @return true if given server is in given list of tried servers (null if none)
+     */
+    private static boolean isTried(NakovForwardServer.ServerDescription aServer,
+            ArrayList<NakovForwardServer.ServerDescription> aTriedServers)
+    {
+        return aTriedServers != null && aTriedServers.contains(aServer);
+    }
+ 
+    /**
+     * @return true if given server having given connections count can get new
+     * clients: it is alive, not drained, its weight is not 0 and it has not
+     * reached its maximal connections count
+     */
+    private static boolean isAvailable(NakovForwardServer.ServerDescription aServer, int aLoad)
+    {
+        return aServer.isAlive && !aServer.isDrained && aServer.weight > 0 &&
+           (aServer.maxConnections <= 0 || aLoad < aServer.maxConnections);
+    }
+ 
+    /**
+     * @return true if the first server is less loaded than the second one, given
+     * their connections counts. The load is (connections + 1) / effective weight
+     * (the weight reduced during slow start), multiplied by the average latency of
+     * the server if latency algorithm is used. The products are compared instead
+     * of the quotients.
+     */
+    private boolean isLessLoaded(NakovForwardServer.ServerDescription aServer1, int aLoad1,
+            NakovForwardServer.ServerDescription aServer2, int aLoad2)
+    {
+        double load1 = (aLoad1 + 1.0) * aServer2.getEffectiveWeight();
+        double load2 = (aLoad2 + 1.0) * aServer1.getEffectiveWeight();
+        if (mAlgorithm == LATENCY) {
+           load1 *= getLatency(aServer1);
+           load2 *= getLatency(aServer2);
+        }
+        return load1 < load2;
+    }
+ 
+    /**
+     * @return the average latency of given server: the sum of the moving averages
+     * of its connect time and its time to first response byte (at least 1 us, so
+     * servers without latency samples yet are compared by connections)
+     */
+    private static double getLatency(NakovForwardServer.ServerDescription aServer)
+    {
+        return Math.max(MIN_LATENCY_NANOS,
+           aServer.connectLatency.getAverageNanos() + aServer.responseLatency.getAverageNanos());
+    }
+ 
+}
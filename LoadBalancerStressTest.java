@@ -0,0 +1,180 @@
+/**
+ * LoadBalancerStressTest is a standalone stress test of the atomic server
+ * reservation of LoadBalancer. 64 threads act as concurrent acceptors: they
+ * reserve servers, hold the connections for a moment and release them, using
+ * each of the load balancing algorithms. The test checks that:
+ *     - the maximal connections of a server are never exceeded
+ *     - the connection counters do not drift (they return to 0)
+ *     - a burst of clients is spread evenly by the least connections and the
+ *       latency algorithms (no server gets two clients more than another)
+ * Run it by:
+ *     java LoadBalancerStressTest
+ * It prints the results of each check and exits with status 1 if some check fails.
+ */
+ 
+import java.net.InetAddress;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+ 
+public class LoadBalancerStressTest
+{
+    private static final int ACCEPTORS_COUNT = 64;
+    private static final int SERVERS_COUNT = 8;
+    private static final int RESERVATIONS_PER_ACCEPTOR = 20000;
+    private static final int BURSTS_COUNT = 2000;
+    private static final int CLIENT_ADDRESSES_COUNT = 256;
+    private static final int[] ALGORITHMS = {LoadBalancer.FIRST_ALIVE, LoadBalancer.LEAST_CONNECTIONS,
+        LoadBalancer.POWER_OF_TWO_CHOICES, LoadBalancer.CONSISTENT_HASH, LoadBalancer.LATENCY};
+ 
+    private static NakovForwardServer mNakovForwardServer = new NakovForwardServer();
+    private static InetAddress[] mClientAddresses = new InetAddress[CLIENT_ADDRESSES_COUNT];
+    private static boolean mFailed = false;
+ 
+    /**
+     * Runs all the checks for all the load balancing algorithms
+     */
+    public static void main(String[] aArgs) throws Exception
+    {
+        for (int i=0; i<CLIENT_ADDRESSES_COUNT; i++)
+           mClientAddresses[i] = InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+        for (int i=0; i<ALGORITHMS.length; i++) {
+           LoadBalancer loadBalancer = new LoadBalancer(ALGORITHMS[i]);
+           checkLimits(loadBalancer);
+           if (ALGORITHMS[i] == LoadBalancer.LEAST_CONNECTIONS || ALGORITHMS[i] == LoadBalancer.LATENCY)
+               checkBurstSpread(loadBalancer);
+        }
+        System.out.println(mFailed ? "FAILED" : "PASSED");
+        System.exit(mFailed ? 1 : 0);
+    }
+ 
+    /**
+     * @return servers with given weights and given maximal connections
+     */
+    private static NakovForwardServer.ServerDescription[] createServers(int[] aWeights, int[] aMaxConnections)
+    {
+        NakovForwardServer.ServerDescription[] servers = new NakovForwardServer.ServerDescription[aWeights.length];
+        for (int i=0; i<servers.length; i++) {
+           servers[i] = mNakovForwardServer.new ServerDescription("127.0.0.1", 20000 + i);
+           servers[i].weight = aWeights[i];
+           servers[i].maxConnections = aMaxConnections[i];
+        }
+        return servers;
+    }
+ 
+    /**
+     * Reserves and releases servers with limited connections from all the acceptor
+     * threads at once and checks the limits are never exceeded and the counters
+     * return to 0
+     */
+    private static void checkLimits(final LoadBalancer aLoadBalancer) throws Exception
+    {
+        final NakovForwardServer.ServerDescription[] servers = createServers(
+           new int[] {1, 2, 3, 4, 1, 2, 3, 4}, new int[] {3, 4, 5, 6, 7, 8, 9, 10});
+        final AtomicInteger[] holders = new AtomicInteger[servers.length];
+        for (int i=0; i<holders.length; i++)
+           holders[i] = new AtomicInteger();
+        final AtomicInteger exceeded = new AtomicInteger();
+        final AtomicInteger reserved = new AtomicInteger();
+        runAcceptors(new Runnable() {
+           public void run()
+           {
+               ThreadLocalRandom random = ThreadLocalRandom.current();
+               for (int i=0; i<RESERVATIONS_PER_ACCEPTOR; i++) {
+                   InetAddress client = mClientAddresses[random.nextInt(CLIENT_ADDRESSES_COUNT)];
+                   NakovForwardServer.ServerDescription server = aLoadBalancer.reserveServer(servers, client, null);
+                   if (server == null)
+                       continue;  // All the servers are busy
+                   reserved.incrementAndGet();
+                   int index = server.port - 20000;
+                   int holding = holders[index].incrementAndGet();
+                   if (holding > server.maxConnections || server.clientsConectedCount.get() > server.maxConnections)
+                       exceeded.incrementAndGet();
+                   if (random.nextInt(4) == 0)
+                       Thread.yield();  // Hold the connection for a while
+                   holders[index].decrementAndGet();
+                   aLoadBalancer.releaseServer(server);
+               }
+           }
+        });
+        int leftConnections = 0;
+        for (int i=0; i<servers.length; i++)
+           leftConnections += Math.abs(servers[i].clientsConectedCount.get());
+        report(aLoadBalancer, "maximal connections never exceeded (" + reserved.get() + " reservations)",
+           exceeded.get() == 0, exceeded.get() + " reservations exceeded the limit");
+        report(aLoadBalancer, "connection counters returned to 0",
+           leftConnections == 0, leftConnections + " connections left");
+    }
+ 
+    /**
+     * Reserves a server from all the acceptor threads at once (a burst of clients)
+     * many times and checks each burst is spread evenly over the servers
+     */
+    private static void checkBurstSpread(final LoadBalancer aLoadBalancer) throws Exception
+    {
+        int[] weights = new int[SERVERS_COUNT];
+        int[] maxConnections = new int[SERVERS_COUNT];
+        for (int i=0; i<SERVERS_COUNT; i++)
+           weights[i] = 1;
+        final NakovForwardServer.ServerDescription[] servers = createServers(weights, maxConnections);
+        final AtomicInteger unevenBursts = new AtomicInteger();
+        final CyclicBarrier startBarrier = new CyclicBarrier(ACCEPTORS_COUNT);
+        final CyclicBarrier reservedBarrier = new CyclicBarrier(ACCEPTORS_COUNT, new Runnable() {
+           public void run()
+           {
+               int min = Integer.MAX_VALUE;
+               int max = 0;
+               for (int i=0; i<servers.length; i++) {
+                   min = Math.min(min, servers[i].clientsConectedCount.get());
+                   max = Math.max(max, servers[i].clientsConectedCount.get());
+               }
+               if (max - min > 1)
+                   unevenBursts.incrementAndGet();
+           }
+        });
+        runAcceptors(new Runnable() {
+           public void run()
+           {
+               try {
+                   for (int i=0; i<BURSTS_COUNT; i++) {
+                       startBarrier.await();
+                       NakovForwardServer.ServerDescription server =
+                           aLoadBalancer.reserveServer(servers, mClientAddresses[0], null);
+                       reservedBarrier.await();
+                       aLoadBalancer.releaseServer(server);
+                   }
+               } catch (Exception e) {
+                   throw new RuntimeException(e);
+               }
+           }
+        });
+        report(aLoadBalancer, "bursts of " + ACCEPTORS_COUNT + " clients spread evenly",
+           unevenBursts.get() == 0, unevenBursts.get() + " of " + BURSTS_COUNT + " bursts uneven");
+    }
+ 
+    /**
+     * Runs given task in all the acceptor threads at once and waits for them
+     */
+    private static void runAcceptors(Runnable aTask) throws Exception
+    {
+        Thread[] acceptors = new Thread[ACCEPTORS_COUNT];
+        for (int i=0; i<acceptors.length; i++) {
+           acceptors[i] = new Thread(aTask, "Acceptor-" + i);
+           acceptors[i].start();
+        }
+        for (int i=0; i<acceptors.length; i++)
+           acceptors[i].join();
+    }
+ 
+    /**
+     * Prints the result of a check
+     */
+    private static void report(LoadBalancer aLoadBalancer, String aCheck, boolean aPassed, String aFailure)
+    {
+        System.out.println((aPassed ? "OK     " : "FAILED ") + aLoadBalancer.getAlgorithmName() + ": " +
+           aCheck + (aPassed ? "" : " - " + aFailure));
+        if (!aPassed)
+           mFailed = true;
+    }
+ 
+}
@@ -0,0 +1,124 @@
+/**
+ * MaglevHashTable maps client addresses to destination servers by consistent
+ * hashing (the Maglev lookup table algorithm). Every server fills the table
+ * entries in the order of its own pseudo-random permutation of the entries, taking
+ * turns with the other servers (a server with bigger weight takes more entries per
+ * turn). Thus each server owns an almost equal (weighted) share of the table and
+ * when a server is added or removed only about 1/N of the entries (and the clients
+ * hashed to them) move to another server. The table is immutable - a new table is
+ * built when the set of the servers changes. Only the alive and not drained
+ * servers get entries in the table.
+ */
+ 
+import java.net.InetAddress;
+import java.util.Arrays;
+ 
+public class MaglevHashTable
+{
+    private static final int TABLE_SIZE = 65537;  // A prime much bigger than the servers count
+ 
+    private NakovForwardServer.ServerDescription[] mServers;
+    private int[] mWeights;
+    private int[] mLookupTable;
+ 
+    /**
+     * Builds the lookup table for given servers. Servers with weight 0 get no entries.
+     */
+    public MaglevHashTable(NakovForwardServer.ServerDescription[] aServers)
+    {
+        mServers = aServers;
+        mWeights = new int[aServers.length];
+        for (int i=0; i<aServers.length; i++)
+           mWeights[i] = aServers[i].weight;
+        mLookupTable = new int[TABLE_SIZE];
+        Arrays.fill(mLookupTable, -1);
+        if (aServers.length == 0)
+           return;
+ 
+        // Compute the permutation (offset and skip) of each server from its name
+        int[] offsets = new int[aServers.length];
+        int[] skips = new int[aServers.length];
+        int[] next = new int[aServers.length];
+        boolean hasWeight = false;
+        for (int i=0; i<aServers.length; i++) {
+           String name = aServers[i].host + ":" + aServers[i].port;
+           offsets[i] = (int) (hash(name.hashCode(), 0x9E3779B9L) % TABLE_SIZE);
+           skips[i] = (int) (hash(name.hashCode(), 0x85EBCA6BL) % (TABLE_SIZE - 1)) + 1;
+           hasWeight |= mWeights[i] > 0;
+        }
+        if (!hasWeight)
+           return;
+ 
+        // Servers take turns to claim their next preferred free entry
+        int filled = 0;
+        while (true) {
+           for (int i=0; i<aServers.length; i++) {
+               for (int w=0; w<mWeights[i]; w++) {
+                   int entry;
+                   do {
+                       entry = (int) ((offsets[i] + (long) next[i] * skips[i]) % TABLE_SIZE);
+                       next[i]++;
+                   } while (mLookupTable[entry] >= 0);
+                   mLookupTable[entry] = i;
+                   if (++filled == TABLE_SIZE)
+                       return;
+               }
+           }
+        }
+    }
+ 
+    /**
+     * @return true if given server should get entries in the table: it is alive
+     * and not drained
+     */
+    public static boolean isMapped(NakovForwardServer.ServerDescription aServer)
+    {
+        return aServer.isAlive && !aServer.isDrained;
+    }
+ 
+    /**
+     * @return true if this table was built for exactly the alive and not drained
+     * servers from given list (in the same order and with the same weights)
+     */
+    public boolean isBuiltFor(NakovForwardServer.ServerDescription[] aServers)
+    {
+        int index = 0;
+        for (int i=0; i<aServers.length; i++) {
+           if (!isMapped(aServers[i]))
+               continue;
+           if (index >= mServers.length || aServers[i] != mServers[index] ||
+                   aServers[i].weight != mWeights[index])
+               return false;
+           index++;
+        }
+        return index == mServers.length;
+    }
+ 
+    /**
+     * @return the server given client address is mapped to or null if the table is empty
+     */
+    public NakovForwardServer.ServerDescription lookup(InetAddress aClientAddress)
+    {
+        byte[] address = aClientAddress.getAddress();
+        int addressHash = 0;
+        for (int i=0; i<address.length; i++)
+           addressHash = addressHash * 31 + address[i];
+        int index = mLookupTable[(int) (hash(addressHash, 0xC2B2AE35L) % TABLE_SIZE)];
+        return (index < 0) ? null : mServers[index];
+    }
+ 
+    /**
+     * @return a well mixed non-negative hash of given value (MurmurHash3 finalizer)
+     */
+    private static long hash(int aValue, long aSeed)
+    {
+        long h = aValue ^ aSeed;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h & Long.MAX_VALUE;
+    }
+ 
+}
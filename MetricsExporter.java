@@ -0,0 +1,240 @@
+/**
+ * MetricsExporter formats the metrics of Nakov Forward Server in Prometheus text
+ * format: the counters, gauges and latency histograms of each listener (the ports
+ * of a port range are reported together under the listener's name) and of each
+ * destination server (see ForwardMetrics), the health and the slow start state
+ * of the servers and the buffer pool gauges. The servers of a port range are
+ * reported together per host, so a range of thousands of ports does not produce
+ * thousands of series: their counters and distributions are summed, the up gauge
+ * is the number of the ports the host gets clients on and the weights and the
+ * slow start progress are averaged. The metrics are served by the admin endpoint on /metrics.
+ */
+ 
+import java.util.ArrayList;
+import java.util.HashMap;
+ 
+public class MetricsExporter
+{
+    private static final String PREFIX = "nakov_forward_";
+ 
+    /**
+     * ServerSeries is the state of a server (or of a host of a port range, summed
+     * over its ports) reported with given labels
+     */
+    private static class ServerSeries
+    {
+        String mLabels;
+        ForwardMetrics mMetrics;
+        int mServersCount = 0;
+        int mUpCount = 0;
+        double mWeightSum = 0;
+        double mEffectiveWeightSum = 0;
+        double mSlowStartProgressSum = 0;
+ 
+        ServerSeries(String aLabels, ForwardMetrics aMetrics)
+        {
+            mLabels = aLabels;
+            mMetrics = aMetrics;
+        }
+ 
+        /**
+         * Adds the gauges of given server (its metrics are added by the caller if needed)
+         */
+        void add(NakovForwardServer.ServerDescription aServer)
+        {
+            mServersCount++;
+            if (aServer.isAlive && !aServer.isDrained)
+               mUpCount++;
+            mWeightSum += aServer.weight;
+            mEffectiveWeightSum += aServer.getEffectiveWeight();
+            mSlowStartProgressSum += aServer.getSlowStartProgress();
+        }
+    }
+ 
+    /**
+     * @return the current metrics of given server in Prometheus text format
+     */
+    public static String export(NakovForwardServer aNakovForwardServer)
+    {
+        // Collect the listeners (a port range once) and the servers with their labels
+        ForwardListener[] listeners = aNakovForwardServer.getListeners();
+        ArrayList<String> listenerLabels = new ArrayList<String>();
+        ArrayList<ForwardMetrics> listenerMetrics = new ArrayList<ForwardMetrics>();
+        ArrayList<Long> waitingClients = new ArrayList<Long>();
+        ArrayList<ServerSeries> servers = new ArrayList<ServerSeries>();
+        HashMap<String, ServerSeries> portRangeServers = new HashMap<String, ServerSeries>();
+        for (int i=0; i<listeners.length; i++) {
+           ForwardListener listener = listeners[i];
+           String listenerLabel = "listener=\"" + escape(listener.getSettingsName()) + "\"";
+           AdmissionQueue admissionQueue = listener.getAdmissionQueue();
+           long waiting = (admissionQueue != null) ? admissionQueue.size() : 0;
+           if (i > 0 && listener.getSettingsName().equals(listeners[i-1].getSettingsName())) {
+               int last = waitingClients.size() - 1;
+               waitingClients.set(last, waitingClients.get(last) + waiting);
+           } else {
+               listenerLabels.add(listenerLabel);
+               listenerMetrics.add(listener.getMetrics());
+               waitingClients.add(waiting);
+           }
+           NakovForwardServer.ServerDescription[] listenerServers = listener.getServersList();
+           for (int j=0; j<listenerServers.length; j++) {
+               NakovForwardServer.ServerDescription server = listenerServers[j];
+               ServerSeries series;
+               if (listener.isPortRangeMember()) {
+                   // Sum the servers of the same host over all the ports of the range
+                   String key = listener.getSettingsName() + "\n" + server.host;
+                   series = portRangeServers.get(key);
+                   if (series == null) {
+                       series = new ServerSeries(listenerLabel + ",server=\"" + escape(server.host) + "\"",
+                           new ForwardMetrics());
+                       portRangeServers.put(key, series);
+                       servers.add(series);
+                   }
+                   series.mMetrics.add(server.metrics);
+               } else {
+                   series = new ServerSeries(listenerLabel + ",server=\"" + escape(server.host) + ":" +
+                       server.port + "\"", server.metrics);
+                   servers.add(series);
+               }
+               series.add(server);
+           }
+        }
+        ArrayList<String> serverLabels = new ArrayList<String>();
+        ArrayList<ForwardMetrics> serverMetrics = new ArrayList<ForwardMetrics>();
+        for (int i=0; i<servers.size(); i++) {
+           serverLabels.add(servers.get(i).mLabels);
+           serverMetrics.add(servers.get(i).mMetrics);
+        }
+ 
+        StringBuffer text = new StringBuffer();
+        String name = PREFIX + "listener_accepted_connections_total";
+        appendHeader(text, name, "counter", "Client connections accepted by the listener.");
+        for (int i=0; i<listenerMetrics.size(); i++)
+           appendSample(text, name, listenerLabels.get(i), listenerMetrics.get(i).getAcceptedConnections());
+        name = PREFIX + "listener_rejected_connections_total";
+        appendHeader(text, name, "counter", "Client connections closed because all the servers were down or busy.");
+        for (int i=0; i<listenerMetrics.size(); i++)
+           appendSample(text, name, listenerLabels.get(i), listenerMetrics.get(i).getRejectedConnections());
+        name = PREFIX + "listener_waiting_clients";
+        appendHeader(text, name, "gauge", "Clients waiting in the admission queue for a free connection slot.");
+        for (int i=0; i<listenerMetrics.size(); i++)
+           appendSample(text, name, listenerLabels.get(i), waitingClients.get(i));
+        appendForwardMetrics(text, PREFIX + "listener_", listenerLabels, listenerMetrics);
+ 
+        name = PREFIX + "server_up";
+        appendHeader(text, name, "gauge", "Whether the server gets clients (1) or is dead, ejected or drained (0). " +
+           "For a port range the number of the ports the host gets clients on.");
+        for (int i=0; i<servers.size(); i++)
+           appendSample(text, name, serverLabels.get(i), servers.get(i).mUpCount);
+        name = PREFIX + "server_weight";
+        appendHeader(text, name, "gauge", "Weight of the server (averaged over the ports of a port range).");
+        for (int i=0; i<servers.size(); i++)
+           appendSample(text, name, serverLabels.get(i), servers.get(i).mWeightSum / servers.get(i).mServersCount);
+        name = PREFIX + "server_effective_weight";
+        appendHeader(text, name, "gauge", "Weight of the server used by the load balancing (reduced during slow start).");
+        for (int i=0; i<servers.size(); i++)
+           appendSample(text, name, serverLabels.get(i),
+               servers.get(i).mEffectiveWeightSum / servers.get(i).mServersCount);
+        name = PREFIX + "server_slow_start_progress";
+        appendHeader(text, name, "gauge", "Progress of the slow start of the server, from 0 (just revived) to 1 (over).");
+        for (int i=0; i<servers.size(); i++)
+           appendSample(text, name, serverLabels.get(i),
+               servers.get(i).mSlowStartProgressSum / servers.get(i).mServersCount);
+        appendForwardMetrics(text, PREFIX + "server_", serverLabels, serverMetrics);
+ 
+        BufferPool bufferPool = aNakovForwardServer.getBufferPool();
+        name = PREFIX + "buffer_pool_used_buffers";
+        appendHeader(text, name, "gauge", "Pooled buffers in use.");
+        appendSample(text, name, "", bufferPool.getUsedSlabsCount());
+        name = PREFIX + "buffer_pool_free_buffers";
+        appendHeader(text, name, "gauge", "Allocated pooled buffers not in use.");
+        appendSample(text, name, "", bufferPool.getFreeSlabsCount());
+        name = PREFIX + "buffer_pool_allocated_bytes";
+        appendHeader(text, name, "gauge", "Direct memory allocated by the buffer pool.");
+        appendSample(text, name, "", bufferPool.getAllocatedMemory());
+        name = PREFIX + "buffer_pool_unpooled_allocations_total";
+        appendHeader(text, name, "counter", "Heap buffers allocated because the buffer pool was exhausted.");
+        appendSample(text, name, "", bufferPool.getUnpooledAllocationsCount());
+        return text.toString();
+    }
+ 
+    /**
+     * Appends the metrics common for the listeners and the servers with given
+     * metric name prefix for all given label sets and their metrics
+     */
+    private static void appendForwardMetrics(StringBuffer aText, String aPrefix,
+            ArrayList<String> aLabels, ArrayList<ForwardMetrics> aMetrics)
+    {
+        String name = aPrefix + "forwarded_connections_total";
+        appendHeader(aText, name, "counter", "Connections forwarded to a server.");
+        for (int i=0; i<aMetrics.size(); i++)
+           appendSample(aText, name, aLabels.get(i), aMetrics.get(i).getForwardedConnections());
+        name = aPrefix + "active_connections";
+        appendHeader(aText, name, "gauge", "Connections being forwarded.");
+        for (int i=0; i<aMetrics.size(); i++)
+           appendSample(aText, name, aLabels.get(i), aMetrics.get(i).getActiveConnections());
+        name = aPrefix + "failed_connects_total";
+        appendHeader(aText, name, "counter", "Failed or timed out connects to a server.");
+        for (int i=0; i<aMetrics.size(); i++)
+           appendSample(aText, name, aLabels.get(i), aMetrics.get(i).getFailedConnects());
+        name = aPrefix + "bytes_total";
+        appendHeader(aText, name, "counter", "Bytes forwarded in each direction.");
+        for (int i=0; i<aMetrics.size(); i++) {
+           appendSample(aText, name, aLabels.get(i) + ",direction=\"to_server\"", aMetrics.get(i).getBytesToServer());
+           appendSample(aText, name, aLabels.get(i) + ",direction=\"to_client\"", aMetrics.get(i).getBytesToClient());
+        }
+        name = aPrefix + "connect_latency_seconds";
+        appendHeader(aText, name, "histogram", "Time for connecting to a server.");
+        for (int i=0; i<aMetrics.size(); i++)
+           aMetrics.get(i).getConnectLatency().appendTo(aText, name, aLabels.get(i));
+        name = aPrefix + "first_byte_latency_seconds";
+        appendHeader(aText, name, "histogram", "Time from the first client data (or the connect) to the first server data.");
+        for (int i=0; i<aMetrics.size(); i++)
+           aMetrics.get(i).getFirstByteLatency().appendTo(aText, name, aLabels.get(i));
+        name = aPrefix + "session_duration_seconds";
+        appendHeader(aText, name, "histogram", "Duration of the forwarded connections.");
+        for (int i=0; i<aMetrics.size(); i++)
+           aMetrics.get(i).getSessionDuration().appendTo(aText, name, aLabels.get(i));
+    }
+ 
+    /**
+     * Appends the HELP and TYPE lines of a metric
+     */
+    private static void appendHeader(StringBuffer aText, String aName, String aType, String aHelp)
+    {
+        aText.append("# HELP ").append(aName).append(' ').append(aHelp).append('\n');
+        aText.append("# TYPE ").append(aName).append(' ').append(aType).append('\n');
+    }
+ 
+    /**
+     * Appends a sample of a metric with given labels (may be empty)
+     */
+    private static void appendSample(StringBuffer aText, String aName, String aLabels, long aValue)
+    {
+        aText.append(aName);
+        if (aLabels.length() > 0)
+           aText.append('{').append(aLabels).append('}');
+        aText.append(' ').append(aValue).append('\n');
+    }
+ 
+    /**
+     * Appends a sample of a metric with given labels (may be empty) and a
+     * fractional value
+     */
+    private static void appendSample(StringBuffer aText, String aName, String aLabels, double aValue)
+    {
+        aText.append(aName);
+        if (aLabels.length() > 0)
+           aText.append('{').append(aLabels).append('}');
+        aText.append(' ').append(aValue).append('\n');
+    }
+ 
+    /**
+     * @return given label value with the backslashes, quotes and new lines escaped
+     */
+    private static String escape(String aValue)
+    {
+        return aValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+ 
+}
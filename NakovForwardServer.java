@@ -64,59 +64,301 @@
  *     Servers = server1:port1, server2:port2, server3:port3, ...
  * For example:
  *     Servers = 192.168.0.22:80, rakiya:80, 192.168.0.23:80, www.nakov.com:80
+ * Each server can optionally have a weight (relative capacity, default is 1) used
+ * by the load balancing algorithm. A server with weight 0 gets no clients:
+ *     Servers = server1:port1:weight1, server2:port2:weight2, ...
+ * and a maximal number of connections (default is the MaxConnections setting):
+ *     Servers = server1:port1:weight1:max_connections1, ...
  * Nakov Forward Server listening port should be in format:
  *     ListeningPort = some_port (in range 1-65535)
  * Using load balancing algorithm is specified by following line:
- *     LoadBalancing = Yes/No
+ *     LoadBalancing = Yes/No/P2C/Hash/Latency
+ * "Yes" selects the server with least connections, "P2C" (power of two choices)
+ * selects the less loaded of two random alive servers, "Hash" always selects the
+ * same server for the same client IP address (consistent hashing), "Latency"
+ * selects the server with least (average latency x connections).
  * Check alive interval through which all dead threads should be re-checked if
  * they are alive is specified by following line:
  *     CheckAliveInterval = time_interval (in milliseconds)
+ * All the servers are checked at once and the maximal time to wait for a server
+ * to accept the check connection is specified by following line:
+ *     ProbeTimeout = time_interval (in milliseconds, default is 2000)
+ * By default a server is alive if it accepts connections. An application-level
+ * check can be configured - a payload sent to the server and the expected start
+ * of its response or a regular expression expected in it:
+ *     HealthCheckSend = payload (e.g. PING\r\n)
+ *     HealthCheckExpect = response_prefix (e.g. +PONG)
+ *     HealthCheckExpectRegex = regular_expression
+ * The check of a single server can be overridden by the same lines followed by
+ * the server host and port, e.g. HealthCheckSend.192.168.0.22.1521 = payload
+ * A server becomes dead after a number of consecutive failed connects or checks
+ * and alive again after a number of consecutive successful checks, specified by
+ * following lines:
+ *     FallCount = failures_count (default is 2)
+ *     RiseCount = successes_count (default is 2)
+ * The check interval of a server that stays dead is doubled after each failed
+ * check up to the maximal check interval specified by following line:
+ *     MaxCheckAliveInterval = time_interval (in milliseconds, default is 60000)
+ * Alive servers are checked too. The check times of the servers are randomly
+ * varied by a jitter (a percent of the check interval) specified by following line:
+ *     CheckAliveJitter = percent (default is 20)
+ * Servers failing in live traffic (resetting connections, closing them without
+ * sending data or not answering the clients) can be temporarily ejected by the
+ * outlier detection enabled by following line:
+ *     OutlierDetection = Yes/No
+ * A server is ejected when the failed sessions reach a percent of its sessions
+ * in a sliding window (and the sessions are not less than a minimal number). The
+ * ejection time grows with the recent ejections of the server. No more than a
+ * percent of the servers can be ejected at once. These are specified by following
+ * lines:
+ *     OutlierWindow = time_interval (in milliseconds, default is 10000)
+ *     OutlierMinSessions = sessions_count (default is 10)
+ *     OutlierFailurePercent = percent (default is 50)
+ *     OutlierEjectionTime = time_interval (in milliseconds, default is 30000)
+ *     MaxEjectionPercent = percent (default is 50)
+ * The configuration file is watched for changes. When it changes, the server
+ * list (with the servers' weights and maximal connections), the load balancing
+ * algorithm and the health checks are applied without dropping the forwarded
+ * connections - the removed servers get no new clients and their connections
+ * drain. The other settings are applied on restart. Watching is specified by
+ * following line:
+ *     ReloadSettings = Yes/No (default is Yes)
+ * One server process can serve several listening ports, each forwarding to its
+ * own servers with its own load balancing algorithm and maximal connections. The
+ * listeners are named by following line and each of them is specified by the
+ * usual lines prefixed with its name (the load balancing algorithm and maximal
+ * connections default to the common settings):
+ *     Listeners = name1, name2, ...
+ *     name1.ListeningPort = some_port
+ *     name1.Servers = server1:port1, server2:port2, ...
+ *     name1.LoadBalancing = Yes/No/P2C/Hash/Latency
+ *     name1.MaxConnections = connections_count
+ * All the listeners share the forwarding threads (or reactors), the buffer pool
+ * and the health checking.
+ * A listener can listen on a whole range of ports instead of a single port. Each
+ * port of the range is forwarded to the same port (plus an optional offset) on
+ * the servers, specified by host (and optionally weight and maximal connections):
+ *     name1.ListeningPorts = first_port-last_port
+ *     name1.Servers = server1, server2:weight2, ...
+ *     name1.ServerPortOffset = offset (default 0)
+ * All the ports of the port ranges are served by a single accepting thread.
+ * The forwarding engine is specified by following line:
+ *     ForwardingEngine = Threads/NIO
+ * "Threads" (the default) uses one thread per client and two threads per forwarded
+ * connection. "NIO" forwards all connections through a small number of selector
+ * reactor threads. The number of reactors is specified by following line:
+ *     ReactorThreads = reactors_count (default is the number of CPU cores)
+ * With "Threads" engine the client and forwarding threads can be started as
+ * virtual threads (requires Java 21 or later) by following line:
+ *     VirtualThreads = Yes/No
+ * Virtual threads pinned to their carrier threads can be traced by following line:
+ *     TracePinnedThreads = Yes/No
+ * The forwarding buffers are taken from a pool of direct buffers shared by all
+ * connections. The maximal memory used by the pool is specified by following line:
+ *     BufferPoolMaxSize = size (in megabytes)
+ * The forwarding buffer of each connection grows for bulk transfers and shrinks
+ * back for interactive traffic within the bounds specified by following lines:
+ *     MinReadBufferSize = size (in bytes)
+ *     MaxReadBufferSize = size (in bytes)
+ * The number of threads accepting client connections is specified by following
+ * line (each of them listens on its own SO_REUSEPORT socket when supported):
+ *     AcceptorThreads = acceptors_count (default is 1)
+ * Nakov Forward Server can keep pools of pre-established idle connections to the
+ * destination servers, so the clients do not wait for connecting to the server.
+ * The minimal and maximal idle connections per server and the maximal time an
+ * idle connection is kept are specified by following lines:
+ *     BackendPoolMinIdle = connections_count (default is 0 - no pooling)
+ *     BackendPoolMaxIdle = connections_count
+ *     BackendPoolMaxIdleAge = time_interval (in milliseconds)
+ * The maximal time for connecting to a destination server is specified by
+ * following line (when it expires, the next server is tried):
+ *     ConnectTimeout = time_interval (in milliseconds)
+ * When a dead server becomes alive, its weight grows linearly from 10% to 100%
+ * during a slow start window specified by following line:
+ *     SlowStartWindow = time_interval (in milliseconds, default is 0 - no slow start)
+ * The maximal number of connections to each destination server is specified by
+ * following line:
+ *     MaxConnections = connections_count (default is 0 - unlimited)
+ * When all the alive servers have reached their maximal connections count, the
+ * accepted clients wait for a free connection slot in an admission queue (the one
+ * closest to its deadline is served first). A client that is not admitted within
+ * the admission timeout or does not fit in the queue is disconnected. The queue
+ * size and the admission timeout are specified by following lines:
+ *     AdmissionQueueSize = clients_count (default is 100, 0 - no waiting)
+ *     AdmissionTimeout = time_interval (in milliseconds, default is 500)
+ * The running server can be inspected and controlled (server weights, draining
+ * servers, immediate health checks) through an admin HTTP endpoint on localhost
+ * (see AdminServer) enabled by following line (it also serves the metrics of the
+ * listeners and the servers in Prometheus format, see MetricsExporter). It
+ * refuses the requests sent from web pages:
+ *     AdminPort = some_port (default is 0 - disabled)
  */
  
 import java.util.ArrayList;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
  
 public class NakovForwardServer
 {
     private static final boolean ENABLE_LOGGING = true;
     public static final String SETTINGS_FILE_NAME = "NakovForwardServer.properties";
+    private static final double SLOW_START_INITIAL_WEIGHT = 0.1;
  
-    private ServerDescription[] mServersList = null;
-    private int mListeningTcpPort = 2001;
-    private boolean mUseLoadBalancingAlgorithm = true;
+    private static final int DEFAULT_LISTENING_PORT = 2001;
+    private static final String DEFAULT_LISTENER_NAME = "default";
+ 
+    private ForwardListener[] mListeners = null;
+    private String mListenersSignature = null;
+    private volatile ServerDescription[] mServersList = null;
     private long mCheckAliveIntervalMs = 5*1000;
+    private long mProbeTimeoutMs = 2*1000;
+    private int mRiseCount = 2;
+    private int mFallCount = 2;
+    private long mMaxCheckAliveIntervalMs = 60*1000;
+    private int mCheckAliveJitterPercent = 20;
+    private OutlierDetector mOutlierDetector = null;
+    private long mConnectTimeoutMs = 10*1000;
+    private long mSlowStartWindowMs = 0;
+    private int mMaxConnections = 0;
+    private int mAdmissionQueueSize = 100;
+    private long mAdmissionTimeoutMs = 500;
+    private boolean mReloadSettings = true;
+    private boolean mUseNioEngine = false;
+    private int mReactorThreadsCount = Runtime.getRuntime().availableProcessors();
+    private ForwardReactor[] mReactors = null;
+    private AtomicInteger mNextReactor = new AtomicInteger();
+    private int mAcceptorThreadsCount = 1;
+    private boolean mUseVirtualThreads = false;
+    private boolean mTracePinnedThreads = false;
+    private ThreadFactory mVirtualThreadFactory = null;
+    private long mBufferPoolMaxSizeMb = 64;
+    private int mMinReadBufferSize = 8192;
+    private int mMaxReadBufferSize = 64*1024;
+    private BufferPool mBufferPool = null;
+    private int mBackendPoolMinIdle = 0;
+    private int mBackendPoolMaxIdle = 0;
+    private long mBackendPoolMaxIdleAgeMs = 30*1000;
+    private BackendPoolFillerThread mBackendPoolFillerThread = null;
+    private CheckAliveThread mCheckAliveThread = null;
+    private int mAdminPort = 0;
  
     /**
      * ServerDescription descripts a server (server hostname/IP, server port,
-     * is the server alive at last check, how many clients are connected to it, etc.)
+     * its resolved address, is the server alive at last check, how many clients are connected to it,
+     * its weight (relative capacity), its pool of idle connections, how many
+     * connects to it timed out, moving averages of its connect time and its time
+     * to first response byte, when it was revived, the maximal number of clients
+     * connected to it (0 - unlimited), its health state, its recent sessions,
+     * until when it is ejected, the listener it belongs to, its metrics, etc.)
+     * The weight can be changed at runtime.
+     * isAlive is true while the health state is healthy or suspect (see
+     * ServerHealth) and the server is not ejected (see OutlierDetector).
+     * isDrained is set by the administrator: a drained server gets no new clients,
+     * while its forwarded connections continue.
+     * The address is resolved when the settings are loaded and again in background
+     * on each check of the server, so the forwarding threads, the reactors and the
+     * checks never wait for DNS.
      */
     class ServerDescription
     {
         public String host;
         public int port;
-        public int clientsConectedCount = 0;
-        public boolean isAlive = true;
+        public volatile InetSocketAddress address;
+        public AtomicInteger clientsConectedCount = new AtomicInteger();
+        public volatile boolean isAlive = true;
+        public volatile boolean isDrained = false;
+        public volatile int weight = 1;
+        public BackendConnectionPool connectionPool = null;
+        public AtomicLong timedOutConnectsCount = new AtomicLong();
+        public ForwardMetrics metrics = new ForwardMetrics();
+        public EwmaLatency connectLatency = new EwmaLatency();
+        public EwmaLatency responseLatency = new EwmaLatency();
+        public volatile long revivedAtMillis = 0;
+        public volatile int maxConnections = -1;
+        public ServerHealth health = null;
+        public HealthCheck healthCheck = null;
+        public ForwardListener listener = null;
+        public SessionStats sessionStats = null;
+        public volatile long ejectedUntilMillis = 0;
+        public int recentEjectionsCount = 0;
+        public long lastEjectionEndMillis = 0;
         public ServerDescription(String host, int port)
         {
            this.host = host;
            this.port = port;
+           resolveAddress();
+        }
+ 
+        /**
+         * Resolves the host name of this server again, because the address of a
+         * host can change. If the host does not resolve now, the last resolved
+         * address is kept.
+         * @return the address of this server (unresolved if the host has never
+         * been resolved)
+         */
+        public InetSocketAddress resolveAddress()
+        {
+           InetSocketAddress resolved = new InetSocketAddress(host, port);
+           if (!resolved.isUnresolved() || address == null || address.isUnresolved())
+               address = resolved;
+           return address;
+        }
+ 
+        /**
+         * @return the progress of the slow start of this server - from 0 (just
+         * revived) to 1 (slow start is over or disabled)
+         */
+        public double getSlowStartProgress()
+        {
+           long elapsed = System.currentTimeMillis() - revivedAtMillis;
+           if (mSlowStartWindowMs <= 0 || elapsed >= mSlowStartWindowMs)
+               return 1.0;
+           return (double) elapsed / mSlowStartWindowMs;
+        }
+ 
+        /**
+         * @return the weight used by the load balancing: during the slow start it
+         * grows linearly from a small part of the weight to the full weight
+         */
+        public double getEffectiveWeight()
+        {
+           double progress = getSlowStartProgress();
+           return weight * (SLOW_START_INITIAL_WEIGHT + (1 - SLOW_START_INITIAL_WEIGHT) * progress);
         }
     }
  
     /**
-     * @return an array of ServerDescription - all destination servers.
+     * @return an array of ServerDescription - all destination servers (of all
+     * the listeners).
      */
     public ServerDescription[] getServersList()
     {
         return mServersList;
     }
  
+    /**
+     * @return all the listeners of the server (the ports of the port ranges are
+     * separate listeners)
+     */
+    public ForwardListener[] getListeners()
+    {
+        return mListeners;
+    }
+ 
     /**
      * @return the time interval (in milliseconds) through which all dead servers
      * should be re-checked if they are alive (a server is alive if accepts
@@ -128,11 +370,134 @@ public class NakovForwardServer
     }
  
     /**
-     * @return true if load balancing algorithm is enabled.
+     * @return the maximal time (in milliseconds) a server check waits for the
+     * server to accept the check connection
+     */
+    public long getProbeTimeoutMs()
+    {
+        return mProbeTimeoutMs;
+    }
+ 
+    /**
+     * @return the maximal time (in milliseconds) for connecting to a destination server
+     */
+    public long getConnectTimeoutMs()
+    {
+        return mConnectTimeoutMs;
+    }
+ 
+    /**
+     * Records a failed connect to given server or a failed check of it. After
+     * enough consecutive failures the server is marked as dead.
+     */
+    public void reportServerFailure(ServerDescription aServer)
+    {
+        int oldState = aServer.health.getState();
+        healthStateChanged(aServer, oldState, aServer.health.recordFailure());
+    }
+ 
+    /**
+     * Records a successful connect to given server or a successful check of it.
+     * After enough consecutive successes a dead server is marked as alive.
+     */
+    public void reportServerSuccess(ServerDescription aServer)
+    {
+        int oldState = aServer.health.getState();
+        healthStateChanged(aServer, oldState, aServer.health.recordSuccess());
+    }
+ 
+    /**
+     * Logs the change of the health state of given server and marks it as alive
+     * or dead according to the new state
+     */
+    private void healthStateChanged(ServerDescription aServer, int aOldState, int aNewState)
+    {
+        if (aNewState == aOldState)
+           return;
+        log("Server " + aServer.host + ":" + aServer.port + " is " + aServer.health.getStateName() + ".");
+        // Concurrent reports can finish in any order, so decide by the latest state
+        boolean serving;
+        synchronized (aServer.health) {
+           serving = ServerHealth.isServing(aServer.health.getState());
+           if (!serving)
+               aServer.isAlive = false;
+        }
+        if (serving && !aServer.isAlive)
+           serverRevived(aServer);
+    }
+ 
+    /**
+     * Records the outcome of a finished forwarding session of given server for
+     * the outlier detection (if enabled)
+     * @param aServerReset true if reading from or writing to the server failed
+     * @param aServerClosedFirst true if the server closed the connection first
+     * @param aClientSentData true if the client sent any data
+     * @param aServerSentData true if the server sent any data
+     */
+    public void reportSessionFinished(ServerDescription aServer, boolean aServerReset,
+            boolean aServerClosedFirst, boolean aClientSentData, boolean aServerSentData)
+    {
+        if (mOutlierDetector != null)
+           mOutlierDetector.sessionFinished(aServer, OutlierDetector.isFailedSession(
+               aServerReset, aServerClosedFirst, aClientSentData, aServerSentData));
+    }
+ 
+    /**
+     * Returns the ejected servers whose ejection time has expired. A returned
+     * server gets clients again if its health state allows it.
+     */
+    public void returnEjectedServers()
+    {
+        long now = System.currentTimeMillis();
+        for (int i=0; i<mServersList.length; i++) {
+           ServerDescription server = mServersList[i];
+           if (server.ejectedUntilMillis == 0 || now < server.ejectedUntilMillis)
+               continue;
+           server.ejectedUntilMillis = 0;
+           server.lastEjectionEndMillis = now;
+           log("Server " + server.host + ":" + server.port + " is returned from ejection.");
+           if (ServerHealth.isServing(server.health.getState()))
+               serverRevived(server);
+        }
+    }
+ 
+    /**
+     * Marks given dead server as alive. The server starts its slow start - its
+     * effective weight grows from a small part of its weight to its full weight
+     * during the slow start window, so it is not flooded by clients while cold.
+     * Does nothing if the server is already alive, is ejected or has failed
+     * again meanwhile.
+     */
+    private void serverRevived(ServerDescription aServer)
+    {
+        synchronized (aServer.health) {
+           if (aServer.isAlive || aServer.ejectedUntilMillis != 0 ||
+                   !ServerHealth.isServing(aServer.health.getState()))
+               return;
+           aServer.revivedAtMillis = System.currentTimeMillis();
+           aServer.isAlive = true;
+        }
+        if (mSlowStartWindowMs > 0)
+           log("Server " + aServer.host + ":" + aServer.port + " is alive again. Slow start for " +
+               mSlowStartWindowMs + " ms.");
+        aServer.listener.slotReleased();
+    }
+ 
+    /**
+     * @return the pool of direct buffers used for forwarding
      */
-    public boolean isLoadBalancingEnabled()
+    public BufferPool getBufferPool()
     {
-        return mUseLoadBalancingAlgorithm;
+        return mBufferPool;
+    }
+ 
+    /**
+     * @return a new buffer sizer adapting the read buffer size of a forwarding
+     * direction between the minimal and maximal buffer size of the buffer pool
+     */
+    public AdaptiveBufferSizer createBufferSizer()
+    {
+        return new AdaptiveBufferSizer(mBufferPool.getMinSlabSize(), mBufferPool.getMaxSlabSize());
     }
  
     /**
@@ -146,97 +511,889 @@ public class NakovForwardServer
         Properties props = new Properties();
         props.load(new FileInputStream(SETTINGS_FILE_NAME));
  
-        // Read and parse the server list
-        String serversProperty = props.getProperty("Servers");
-        if (serversProperty == null )
-           throw new Exception("The server list can not be empty.");
+        // Read the listeners with their server lists, listening ports and load balancing
+        String[] listenerNames = getListenerNames(props.getProperty("Listeners"));
+        mListenersSignature = getListenersSignature(props);
+        ArrayList<ForwardListener> listeners = new ArrayList<ForwardListener>();
+        for (int i=0; i<listenerNames.length; i++)
+           readListener(props, listenerNames[i], listeners);
+        mListeners = listeners.toArray(new ForwardListener[] {});
+        publishServersList();
+ 
+        // Read the check alive interval
+        try {
+           mCheckAliveIntervalMs = Integer.parseInt(props.getProperty("CheckAliveInterval"));
+        } catch (Exception e) {
+           log("Check alive interval is not specified. Using default value : " + mCheckAliveIntervalMs + " ms.");
+        }
+ 
+        // Read the probe timeout
+        try {
+           mProbeTimeoutMs = Long.parseLong(props.getProperty("ProbeTimeout"));
+        } catch (Exception e) {
+           log("Probe timeout is not specified. Using default value : " + mProbeTimeoutMs + " ms.");
+        }
+ 
+        // Read the health state machine settings
+        try {
+           mRiseCount = Integer.parseInt(props.getProperty("RiseCount"));
+        } catch (Exception e) {
+           mRiseCount = 2;
+        }
+        try {
+           mFallCount = Integer.parseInt(props.getProperty("FallCount"));
+        } catch (Exception e) {
+           mFallCount = 2;
+        }
+        try {
+           mMaxCheckAliveIntervalMs = Long.parseLong(props.getProperty("MaxCheckAliveInterval"));
+        } catch (Exception e) {
+           mMaxCheckAliveIntervalMs = 60*1000;
+        }
+        try {
+           mCheckAliveJitterPercent = Integer.parseInt(props.getProperty("CheckAliveJitter"));
+        } catch (Exception e) {
+           mCheckAliveJitterPercent = 20;
+        }
+ 
+        // Read the outlier detection settings
+        if (isEnabled(props.getProperty("OutlierDetection"))) {
+           long windowMs = 10*1000;
+           int minSessions = 10;
+           int failurePercent = 50;
+           long ejectionTimeMs = 30*1000;
+           int maxEjectionPercent = 50;
+           try {
+               windowMs = Long.parseLong(props.getProperty("OutlierWindow"));
+           } catch (Exception e) {
+               log("Outlier window is not specified. Using default value : " + windowMs + " ms.");
+           }
+           try {
+               minSessions = Integer.parseInt(props.getProperty("OutlierMinSessions"));
+           } catch (Exception e) {
+               log("Outlier minimal sessions are not specified. Using default value : " + minSessions);
+           }
+           try {
+               failurePercent = Integer.parseInt(props.getProperty("OutlierFailurePercent"));
+           } catch (Exception e) {
+               log("Outlier failure percent is not specified. Using default value : " + failurePercent);
+           }
+           try {
+               ejectionTimeMs = Long.parseLong(props.getProperty("OutlierEjectionTime"));
+           } catch (Exception e) {
+               log("Outlier ejection time is not specified. Using default value : " + ejectionTimeMs + " ms.");
+           }
+           try {
+               maxEjectionPercent = Integer.parseInt(props.getProperty("MaxEjectionPercent"));
+           } catch (Exception e) {
+               log("Maximal ejection percent is not specified. Using default value : " + maxEjectionPercent);
+           }
+           mOutlierDetector = new OutlierDetector(this, windowMs, minSessions, failurePercent,
+               ejectionTimeMs, maxEjectionPercent);
+        }
+ 
+        // Read the connect timeout
+        try {
+           mConnectTimeoutMs = Long.parseLong(props.getProperty("ConnectTimeout"));
+        } catch (Exception e) {
+           log("Connect timeout is not specified. Using default value : " + mConnectTimeoutMs + " ms.");
+        }
+ 
+        // Read the slow start window
+        try {
+           mSlowStartWindowMs = Long.parseLong(props.getProperty("SlowStartWindow"));
+        } catch (Exception e) {
+           mSlowStartWindowMs = 0;
+        }
+ 
+        // Read the forwarding engine and the number of reactor threads
+        String engine = props.getProperty("ForwardingEngine");
+        if (engine != null)
+           mUseNioEngine = engine.trim().equalsIgnoreCase("nio");
+        try {
+           mReactorThreadsCount = Integer.parseInt(props.getProperty("ReactorThreads"));
+           if (mReactorThreadsCount < 1)
+               throw new Exception("ReactorThreads should be positive.");
+        } catch (Exception e) {
+           mReactorThreadsCount = Runtime.getRuntime().availableProcessors();
+           if (mUseNioEngine)
+               log("ReactorThreads is not specified. Using default value : " + mReactorThreadsCount);
+        }
+ 
+        // Read the number of acceptor threads
+        try {
+           mAcceptorThreadsCount = Integer.parseInt(props.getProperty("AcceptorThreads"));
+           if (mAcceptorThreadsCount < 1)
+               throw new Exception("AcceptorThreads should be positive.");
+        } catch (Exception e) {
+           mAcceptorThreadsCount = 1;
+        }
+ 
+        // Read the backend connection pool properties and create the pools
+        try {
+           mBackendPoolMinIdle = Integer.parseInt(props.getProperty("BackendPoolMinIdle"));
+        } catch (Exception e) {
+           mBackendPoolMinIdle = 0;
+        }
+        try {
+           mBackendPoolMaxIdle = Integer.parseInt(props.getProperty("BackendPoolMaxIdle"));
+        } catch (Exception e) {
+           mBackendPoolMaxIdle = mBackendPoolMinIdle;
+        }
+        try {
+           mBackendPoolMaxIdleAgeMs = Long.parseLong(props.getProperty("BackendPoolMaxIdleAge"));
+        } catch (Exception e) {
+           if (mBackendPoolMaxIdle > 0)
+               log("Backend pool max idle age is not specified. Using default value : " + mBackendPoolMaxIdleAgeMs + " ms.");
+        }
+ 
+        // Read the virtual threads properties
+        mUseVirtualThreads = isEnabled(props.getProperty("VirtualThreads"));
+        mTracePinnedThreads = isEnabled(props.getProperty("TracePinnedThreads"));
+ 
+        // Read the buffer pool size and create the buffer pool
+        try {
+           mBufferPoolMaxSizeMb = Long.parseLong(props.getProperty("BufferPoolMaxSize"));
+        } catch (Exception e) {
+           log("Buffer pool size is not specified. Using default value : " + mBufferPoolMaxSizeMb + " MB.");
+        }
+        try {
+           mMinReadBufferSize = Integer.parseInt(props.getProperty("MinReadBufferSize"));
+        } catch (Exception e) {
+           log("Minimal read buffer size is not specified. Using default value : " + mMinReadBufferSize);
+        }
+        try {
+           mMaxReadBufferSize = Integer.parseInt(props.getProperty("MaxReadBufferSize"));
+        } catch (Exception e) {
+           log("Maximal read buffer size is not specified. Using default value : " + mMaxReadBufferSize);
+        }
+        mBufferPool = new BufferPool(mMinReadBufferSize, mMaxReadBufferSize, mBufferPoolMaxSizeMb * 1024 * 1024);
+ 
+        // Read the maximal connections per server and initialize the servers' state
+        try {
+           mMaxConnections = Integer.parseInt(props.getProperty("MaxConnections"));
+        } catch (Exception e) {
+           mMaxConnections = 0;
+        }
+        for (int i=0; i<mListeners.length; i++)
+           initServers(mListeners[i].getServersList(), props, getListenerPrefix(mListeners[i].getSettingsName()),
+               mMaxConnections);
+ 
+        // Read the admission queue settings
+        boolean connectionsLimited = isConnectionsLimited(mServersList);
+        try {
+           mAdmissionQueueSize = Integer.parseInt(props.getProperty("AdmissionQueueSize"));
+        } catch (Exception e) {
+           if (connectionsLimited)
+               log("Admission queue size is not specified. Using default value : " + mAdmissionQueueSize);
+        }
+        try {
+           mAdmissionTimeoutMs = Long.parseLong(props.getProperty("AdmissionTimeout"));
+        } catch (Exception e) {
+           if (connectionsLimited)
+               log("Admission timeout is not specified. Using default value : " + mAdmissionTimeoutMs + " ms.");
+        }
+        for (int i=0; i<mListeners.length; i++)
+           mListeners[i].createAdmissionQueueIfNeeded(mAdmissionQueueSize, mAdmissionTimeoutMs);
+ 
+        // Read the settings reloading property
+        String reloadSettings = props.getProperty("ReloadSettings");
+        mReloadSettings = (reloadSettings == null) || isEnabled(reloadSettings);
+ 
+        // Read the admin port
+        try {
+           mAdminPort = Integer.parseInt(props.getProperty("AdminPort"));
+        } catch (Exception e) {
+           mAdminPort = 0;
+        }
+ 
+    }
+ 
+    /**
+     * @return the names of the listeners from given Listeners property or a single
+     * default listener if the property is not specified
+     */
+    private static String[] getListenerNames(String aListenersProperty)
+    throws Exception
+    {
+        if (aListenersProperty == null)
+           return new String[] {DEFAULT_LISTENER_NAME};
+        ArrayList<String> names = new ArrayList<String>();
+        StringTokenizer stListeners = new StringTokenizer(aListenersProperty, ", ");
+        while (stListeners.hasMoreTokens())
+           names.add(stListeners.nextToken());
+        if (names.size() == 0)
+           throw new Exception("The listener list can not be empty.");
+        return names.toArray(new String[] {});
+    }
+ 
+    /**
+     * @return the listener names and listening ports (or port ranges) from given
+     * properties as a single string, so their changes can be detected
+     */
+    private static String getListenersSignature(Properties aProps)
+    {
+        String listenersProperty = aProps.getProperty("Listeners");
+        StringBuffer signature = new StringBuffer(String.valueOf(listenersProperty));
         try {
-           ArrayList servers = new ArrayList();
-           StringTokenizer stServers = new StringTokenizer(serversProperty,",");
+           String[] listenerNames = getListenerNames(listenersProperty);
+           for (int i=0; i<listenerNames.length; i++) {
+               String prefix = getListenerPrefix(listenerNames[i]);
+               signature.append(';').append(aProps.getProperty(prefix + "ListeningPort"));
+               signature.append(';').append(aProps.getProperty(prefix + "ListeningPorts"));
+           }
+        } catch (Exception e) {
+           // The listener list is invalid --> the Listeners property is enough
+        }
+        return signature.toString();
+    }
+ 
+    /**
+     * @return the prefix of the properties of the listener with given name (the
+     * default listener is specified by properties without a prefix)
+     */
+    private static String getListenerPrefix(String aListenerName)
+    {
+        return aListenerName.equals(DEFAULT_LISTENER_NAME) ? "" : aListenerName + ".";
+    }
+ 
+    /**
+     * Reads the listening port, the server list and the load balancing algorithm
+     * of the listener with given name and adds the listener to given list. A port
+     * range listener is added as a separate listener for each port of the range.
+     */
+    private void readListener(Properties aProps, String aName, ArrayList<ForwardListener> aListeners)
+    throws Exception
+    {
+        String prefix = getListenerPrefix(aName);
+        LoadBalancer loadBalancer = readLoadBalancer(aProps, prefix);
+        if (loadBalancer == null) {
+           loadBalancer = new LoadBalancer(LoadBalancer.LEAST_CONNECTIONS);
+           log("LoadBalancing property is not specified. Using default value : " + loadBalancer.getAlgorithmName());
+        }
+ 
+        String portRange = aProps.getProperty(prefix + "ListeningPorts");
+        if (portRange != null) {
+           int[] ports = parsePortRange(portRange, prefix + "ListeningPorts");
+           ForwardMetrics metrics = new ForwardMetrics();
+           for (int port=ports[0]; port<=ports[1]; port++) {
+               ServerDescription[] servers = parseServersList(getServersProperty(aProps, aName, port));
+               aListeners.add(new ForwardListener(aName + ":" + port, aName, port, servers,
+                   new LoadBalancer(loadBalancer.getAlgorithm()), metrics));
+           }
+           return;
+        }
+ 
+        ServerDescription[] servers = parseServersList(getServersProperty(aProps, aName, 0));
+        int listeningPort = DEFAULT_LISTENING_PORT;
+        try {
+           listeningPort = Integer.parseInt(aProps.getProperty(prefix + "ListeningPort"));
+        } catch (Exception e) {
+           if (prefix.length() > 0)
+               throw new Exception("Invalid listening port " + prefix + "ListeningPort.");
+           log("Server listening port not specified. Using default port : " + listeningPort);
+        }
+        aListeners.add(new ForwardListener(aName, aName, listeningPort, servers, loadBalancer, new ForwardMetrics()));
+    }
+ 
+    /**
+     * Parses given port range in format "first_port-last_port" (or a single port)
+     * @return the first and the last port of the range
+     */
+    private static int[] parsePortRange(String aPortRange, String aPropertyName)
+    throws Exception
+    {
+        try {
+           int dashIndex = aPortRange.indexOf('-');
+           String firstPort = (dashIndex < 0) ? aPortRange : aPortRange.substring(0, dashIndex);
+           String lastPort = (dashIndex < 0) ? aPortRange : aPortRange.substring(dashIndex + 1);
+           int[] ports = new int[] {Integer.parseInt(firstPort.trim()), Integer.parseInt(lastPort.trim())};
+           if (ports[0] >= 1 && ports[0] <= ports[1] && ports[1] <= 65535)
+               return ports;
+        } catch (NumberFormatException nfe) {
+           // Reported below
+        }
+        throw new Exception("Invalid port range " + aPropertyName + " : " + aPortRange);
+    }
+ 
+    /**
+     * @return the server list of the listener with given name (from the settings)
+     * in format "server1:port1:weight1:max1, server2:port2, ...". The servers of a
+     * port range listener are specified without port - they are forwarded to on
+     * the listening port plus the ServerPortOffset, so it is added to each of them.
+     */
+    private static String getServersProperty(Properties aProps, String aSettingsName, int aListeningPort)
+    throws Exception
+    {
+        String prefix = getListenerPrefix(aSettingsName);
+        String serversProperty = aProps.getProperty(prefix + "Servers");
+        if (serversProperty == null)
+           throw new Exception("The server list " + prefix + "Servers can not be empty.");
+        if (aProps.getProperty(prefix + "ListeningPorts") == null)
+           return serversProperty;
+ 
+        int serverPort = aListeningPort;
+        try {
+           serverPort += Integer.parseInt(aProps.getProperty(prefix + "ServerPortOffset", "0").trim());
+        } catch (NumberFormatException nfe) {
+           throw new Exception("Invalid server port offset " + prefix + "ServerPortOffset.");
+        }
+        if (serverPort < 1 || serverPort > 65535)
+           throw new Exception("Invalid server port " + serverPort + " for listening port " + aListeningPort + ".");
+        StringBuffer servers = new StringBuffer();
+        StringTokenizer stServers = new StringTokenizer(serversProperty, ",");
+        while (stServers.hasMoreTokens()) {
+           String server = stServers.nextToken().trim();
+           int hostEnd = server.indexOf(':');
+           if (hostEnd < 0)
+               hostEnd = server.length();
+           if (servers.length() > 0)
+               servers.append(", ");
+           servers.append(server.substring(0, hostEnd)).append(':').append(serverPort).append(server.substring(hostEnd));
+        }
+        return servers.toString();
+    }
+ 
+    /**
+     * @return the load balancer specified by the LoadBalancing property with given
+     * prefix (or the common LoadBalancing property) or null if not specified
+     */
+    private static LoadBalancer readLoadBalancer(Properties aProps, String aPrefix)
+    {
+        String loadBalancing = aProps.getProperty(aPrefix + "LoadBalancing", aProps.getProperty("LoadBalancing"));
+        if (loadBalancing == null)
+           return null;
+        return new LoadBalancer(LoadBalancer.parseAlgorithm(loadBalancing));
+    }
+ 
+    /**
+     * Publishes the list of all the servers of all the listeners (used for health
+     * checking and connection pooling)
+     */
+    private void publishServersList()
+    {
+        ArrayList<ServerDescription> servers = new ArrayList<ServerDescription>();
+        for (int i=0; i<mListeners.length; i++) {
+           ServerDescription[] listenerServers = mListeners[i].getServersList();
+           for (int j=0; j<listenerServers.length; j++)
+               servers.add(listenerServers[j]);
+        }
+        mServersList = servers.toArray(new ServerDescription[] {});
+    }
+ 
+    /**
+     * Parses given server list in format "server1:port1:weight1:max1, server2:port2, ..."
+     * (the weights and the maximal connections are optional)
+     * @return the servers from the list
+     */
+    private ServerDescription[] parseServersList(String aServersProperty)
+    throws Exception
+    {
+        ServerDescription[] serversList;
+        try {
+           ArrayList<ServerDescription> servers = new ArrayList<ServerDescription>();
+           StringTokenizer stServers = new StringTokenizer(aServersProperty,",");
            while (stServers.hasMoreTokens()) {
                String serverAndPort = stServers.nextToken().trim();
                StringTokenizer stServerPort = new StringTokenizer(serverAndPort,": ");
                String host = stServerPort.nextToken();
                int port = Integer.parseInt(stServerPort.nextToken());
-               servers.add(new ServerDescription(host,port));
+               ServerDescription server = new ServerDescription(host,port);
+               if (stServerPort.hasMoreTokens())
+                   server.weight = Integer.parseInt(stServerPort.nextToken());
+               if (server.weight < 0)
+                   throw new Exception("Negative server weight.");
+               if (stServerPort.hasMoreTokens())
+                   server.maxConnections = Integer.parseInt(stServerPort.nextToken());
+               servers.add(server);
            }
-           mServersList = (ServerDescription[]) servers.toArray(new ServerDescription[] {});
+           serversList = servers.toArray(new ServerDescription[] {});
         } catch (Exception e) {
-           throw new Exception("Invalid server list format : " + serversProperty);
+           throw new Exception("Invalid server list format : " + aServersProperty);
         }
-        if (mServersList.length == 0)
+        if (serversList.length == 0)
            throw new Exception("The server list can not be empty.");
+        return serversList;
+    }
  
-        // Read server's listening port number
+    /**
+     * Initializes the state of the new servers in given list (health state
+     * machine, session statistics, connection pool) and applies the settings from
+     * given properties to all the servers in it (maximal connections, health check).
+     * The maximal connections can be specified for the listener with given
+     * properties prefix, otherwise given common maximal connections are used.
+     */
+    private void initServers(ServerDescription[] aServers, Properties aProps, String aListenerPrefix,
+            int aMaxConnections)
+    throws Exception
+    {
+        int maxConnections = aMaxConnections;
         try {
-           mListeningTcpPort = Integer.parseInt(props.getProperty("ListeningPort"));
+           maxConnections = Integer.parseInt(aProps.getProperty(aListenerPrefix + "MaxConnections"));
         } catch (Exception e) {
-           log("Server listening port not specified. Using default port : " + mListeningTcpPort);
+           // Use the common maximal connections
         }
+        HealthCheck commonHealthCheck = readHealthCheck(aProps, "");
+        for (int i=0; i<aServers.length; i++) {
+           ServerDescription server = aServers[i];
+           if (server.maxConnections < 0)
+               server.maxConnections = maxConnections;
+           HealthCheck serverHealthCheck = readHealthCheck(aProps, "." + server.host + "." + server.port);
+           server.healthCheck = (serverHealthCheck != null) ? serverHealthCheck : commonHealthCheck;
+           if (server.health == null)
+               server.health = new ServerHealth(mRiseCount, mFallCount,
+                   mCheckAliveIntervalMs, mMaxCheckAliveIntervalMs, mCheckAliveJitterPercent / 100.0);
+           if (server.sessionStats == null && mOutlierDetector != null)
+               server.sessionStats = new SessionStats(mOutlierDetector.getWindowMs());
+           if (server.connectionPool == null && mBackendPoolMaxIdle > 0)
+               server.connectionPool = new BackendConnectionPool(
+                   mBackendPoolMinIdle, mBackendPoolMaxIdle, mBackendPoolMaxIdleAgeMs);
+        }
+    }
  
-        // Read load balancing property
+    /**
+     * @return true if the connections to some of given servers are limited
+     */
+    private static boolean isConnectionsLimited(ServerDescription[] aServers)
+    {
+        for (int i=0; i<aServers.length; i++)
+           if (aServers[i].maxConnections > 0)
+               return true;
+        return false;
+    }
+ 
+    /**
+     * Re-reads the configuration file and applies the changes of the server list
+     * and the load balancing algorithm without dropping the forwarded connections.
+     * The servers that stay in the list keep their state (connections, health,
+     * statistics). The new settings of all the listeners are read and validated
+     * into new objects first and applied only if all of them are valid, so an
+     * invalid configuration changes nothing. The listeners removed from the
+     * settings keep their current servers until restart. The new server lists are published at
+     * once, so the removed servers get no new clients and their connections drain.
+     */
+    public synchronized void reloadSettings()
+    {
         try {
-           String loadBalancing = props.getProperty("LoadBalancing").toLowerCase();
-            mUseLoadBalancingAlgorithm = (loadBalancing.equals("yes") ||
-				loadBalancing.equals("true") || loadBalancing.equals("1") ||
-				loadBalancing.equals("enable") || loadBalancing.equals("enabled"));
+           Properties props = new Properties();
+           FileInputStream settingsStream = new FileInputStream(SETTINGS_FILE_NAME);
+           try {
+               props.load(settingsStream);
+           } finally {
+               settingsStream.close();
+           }
+           if (!getListenersSignature(props).equals(mListenersSignature))
+               log("The changes of the listeners and their ports will be applied on restart.");
+           int maxConnections;
+           try {
+               maxConnections = Integer.parseInt(props.getProperty("MaxConnections"));
+           } catch (Exception e) {
+               maxConnections = 0;
+           }
+ 
+           // Read the new server lists and load balancers of all the listeners first
+           // into new objects, so an invalid configuration does not change any of them
+           List<String> listenerNames = Arrays.asList(getListenerNames(props.getProperty("Listeners")));
+           ServerDescription[][] newServers = new ServerDescription[mListeners.length][];
+           LoadBalancer[] loadBalancers = new LoadBalancer[mListeners.length];
+           for (int i=0; i<mListeners.length; i++) {
+               boolean firstOfListener = (i == 0 ||
+                   !mListeners[i].getSettingsName().equals(mListeners[i-1].getSettingsName()));
+               if (!listenerNames.contains(mListeners[i].getSettingsName())) {
+                   if (firstOfListener)
+                       log("Listener " + mListeners[i].getSettingsName() + " is removed from the settings. " +
+                           "It keeps its current servers until restart.");
+                   continue;
+               }
+               String prefix = getListenerPrefix(mListeners[i].getSettingsName());
+               newServers[i] = parseServersList(
+                   getServersProperty(props, mListeners[i].getSettingsName(), mListeners[i].getListeningPort()));
+               loadBalancers[i] = readLoadBalancer(props, prefix);
+               if (loadBalancers[i] == null)
+                   loadBalancers[i] = new LoadBalancer(LoadBalancer.LEAST_CONNECTIONS);
+               if (loadBalancers[i].getAlgorithm() == mListeners[i].getLoadBalancer().getAlgorithm())
+                   loadBalancers[i] = mListeners[i].getLoadBalancer();
+               initServers(newServers[i], props, prefix, maxConnections);
+           }
+ 
+           // All the settings are valid --> apply them and publish the new configuration
+           mMaxConnections = maxConnections;
+           for (int i=0; i<mListeners.length; i++) {
+               if (newServers[i] == null)
+                   continue;  // The listener is removed from the settings
+               ServerDescription[] oldServers = mListeners[i].getServersList();
+               keepServersState(oldServers, newServers[i]);
+               mListeners[i].setLoadBalancer(loadBalancers[i]);
+               mListeners[i].setServersList(newServers[i]);
+               mListeners[i].createAdmissionQueueIfNeeded(mAdmissionQueueSize, mAdmissionTimeoutMs);
+               drainRemovedServers(oldServers, newServers[i]);
+               if (i == 0 || !mListeners[i].getSettingsName().equals(mListeners[i-1].getSettingsName()))
+                   log("Settings reloaded. Listener " + mListeners[i].getSettingsName() + " forwards to " +
+                       newServers[i].length + " server(s)" + (mListeners[i].isPortRangeMember() ? " per port" : "") +
+                       ", load balancing algorithm is " + loadBalancers[i].getAlgorithmName() + ".");
+               mListeners[i].slotReleased();  // Some capacity could be added
+           }
+           publishServersList();
         } catch (Exception e) {
-           log("LoadBalancing property is not specified. Using default value : " + mUseLoadBalancingAlgorithm);
+           log("Reloading settings failed: " + e.getMessage() + ". The current settings are kept.");
         }
+    }
  
-        // Read the check alive interval
+    /**
+     * Replaces the servers in given new server list that are in the old list too
+     * with their old descriptions (keeping their connections, health, statistics),
+     * updating their weights, maximal connections and health checks
+     */
+    private static void keepServersState(ServerDescription[] aOldServers, ServerDescription[] aNewServers)
+    {
+        boolean[] kept = new boolean[aOldServers.length];
+        for (int i=0; i<aNewServers.length; i++) {
+           for (int j=0; j<aOldServers.length; j++) {
+               if (!kept[j] && aOldServers[j].host.equals(aNewServers[i].host) &&
+                       aOldServers[j].port == aNewServers[i].port) {
+                   aOldServers[j].weight = aNewServers[i].weight;
+                   aOldServers[j].maxConnections = aNewServers[i].maxConnections;
+                   aOldServers[j].healthCheck = aNewServers[i].healthCheck;
+                   aNewServers[i] = aOldServers[j];
+                   kept[j] = true;
+                   break;
+               }
+           }
+        }
+    }
+ 
+    /**
+     * Logs the servers of given old server list that are not in the new list and
+     * closes their idle pooled connections. Their forwarded connections drain.
+     */
+    private void drainRemovedServers(ServerDescription[] aOldServers, ServerDescription[] aNewServers)
+    {
+        for (int j=0; j<aOldServers.length; j++) {
+           boolean removed = true;
+           for (int i=0; i<aNewServers.length; i++)
+               if (aNewServers[i] == aOldServers[j])
+                   removed = false;
+           if (!removed)
+               continue;
+           log("Server " + aOldServers[j].host + ":" + aOldServers[j].port + " is removed. Draining " +
+               aOldServers[j].clientsConectedCount.get() + " connection(s).");
+           if (aOldServers[j].connectionPool != null)
+               aOldServers[j].connectionPool.clear();
+        }
+    }
+ 
+    /**
+     * @return true if given property value means "enabled" (Yes/True/1/Enable/Enabled)
+     */
+    private static boolean isEnabled(String aPropertyValue)
+    {
+        if (aPropertyValue == null)
+           return false;
+        String value = aPropertyValue.trim().toLowerCase();
+        return (value.equals("yes") || value.equals("true") || value.equals("1") ||
+           value.equals("enable") || value.equals("enabled"));
+    }
+ 
+    /**
+     * Creates the virtual thread factory if virtual threads are enabled. Virtual
+     * threads are available since Java 21, so the factory is obtained through
+     * reflection and if it is not available, platform threads are used instead.
+     */
+    private void initVirtualThreads()
+    {
+        if (!mUseVirtualThreads || mUseNioEngine)
+           return;
+        if (mTracePinnedThreads && System.getProperty("jdk.tracePinnedThreads") == null) {
+           // Print a stack trace each time a virtual thread blocks while pinned
+           System.setProperty("jdk.tracePinnedThreads", "short");
+        }
         try {
-           mCheckAliveIntervalMs = Integer.parseInt(props.getProperty("CheckAliveInterval"));
+           Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+           mVirtualThreadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").
+               getMethod("factory").invoke(builder);
+           log("Virtual threads are ENABLED.");
         } catch (Exception e) {
-           log("Check alive interval is not specified. Using default value : " + mCheckAliveIntervalMs + " ms.");
+           log("Virtual threads are not supported by this Java runtime. Using platform threads.");
         }
+    }
  
+    /**
+     * Starts given task in a new thread - a virtual thread if virtual threads
+     * are enabled and supported, otherwise a platform thread
+     */
+    public Thread startThread(Runnable aTask)
+    {
+        Thread thread;
+        if (mVirtualThreadFactory != null)
+           thread = mVirtualThreadFactory.newThread(aTask);
+        else
+           thread = new Thread(aTask);
+        thread.start();
+        return thread;
     }
  
     /**
-     * Starts a thread that re-checks all dead threads if they are alive
+     * Starts a thread that checks all the servers (alive and dead) if they are alive
      * through mCheckAliveIntervalMs millisoconds
      */
     private void startCheckAliveThread()
     {
-        CheckAliveThread checkAliveThread = new CheckAliveThread(this);
-        checkAliveThread.setDaemon(true);
-        checkAliveThread.start();
+        mCheckAliveThread = new CheckAliveThread(this);
+        mCheckAliveThread.setDaemon(true);
+        mCheckAliveThread.start();
+    }
+ 
+    /**
+     * Requests an immediate check of all the servers (alive and dead) whether
+     * their check is due or not. The check runs in the check alive thread.
+     */
+    public void checkAllServersNow()
+    {
+        mCheckAliveThread.requestCheck();
+    }
+ 
+    /**
+     * Starts the admin HTTP endpoint on localhost if the admin port is specified
+     */
+    private void startAdminServer()
+    throws IOException
+    {
+        if (mAdminPort <= 0)
+           return;
+        AdminServer adminServer = new AdminServer(this, mAdminPort);
+        adminServer.start();
+        log("Admin endpoint is listening on 127.0.0.1:" + mAdminPort + ".");
+    }
+ 
+    /**
+     * Starts a thread that watches the configuration file and reloads the
+     * settings when it changes, if reloading is enabled
+     */
+    private void startSettingsWatcherThread()
+    {
+        if (!mReloadSettings)
+           return;
+        SettingsWatcherThread settingsWatcherThread = new SettingsWatcherThread(this);
+        settingsWatcherThread.setDaemon(true);
+        settingsWatcherThread.start();
+    }
+ 
+    /**
+     * Starts a thread that keeps the backend connection pools filled if the
+     * backend connection pooling is enabled
+     */
+    private void startBackendPoolFillerThread()
+    {
+        if (mBackendPoolMaxIdle <= 0)
+           return;
+        mBackendPoolFillerThread = new BackendPoolFillerThread(this);
+        mBackendPoolFillerThread.setDaemon(true);
+        mBackendPoolFillerThread.start();
+    }
+ 
+    /**
+     * @return an idle pre-established connection to given server or null if
+     * there is no such connection. Taking a connection triggers a pool refill.
+     */
+    public SocketChannel takePooledConnection(ServerDescription aServer)
+    {
+        if (aServer.connectionPool == null)
+           return null;
+        boolean serverSpokeFirst = aServer.connectionPool.isServerSpeakingFirst();
+        SocketChannel channel = aServer.connectionPool.take();
+        if (!serverSpokeFirst && aServer.connectionPool.isServerSpeakingFirst())
+           log("Server " + aServer.host + ":" + aServer.port + " sends data as soon as it is connected. " +
+               "Its connections will not be pooled.");
+        mBackendPoolFillerThread.requestRefill();
+        return channel;
     }
  
     /**
-     * Starts the forward server - binds on a given port and starts serving
+     * @return a new blocking channel connected to given server. If the connect
+     * timeout expires, the timed out connects counter of the server is increased.
+     * @throws IOException if the server can not be connected.
+     */
+    public SocketChannel connectToServer(ServerDescription aServer)
+    throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        try {
+           channel.socket().connect(aServer.address, (int) mConnectTimeoutMs);
+           return channel;
+        } catch (SocketTimeoutException ste) {
+           aServer.timedOutConnectsCount.incrementAndGet();
+           log("Connecting to " + aServer.host + ":" + aServer.port + " timed out after " + mConnectTimeoutMs + " ms.");
+           channel.close();
+           throw ste;
+        } catch (IOException ioe) {
+           channel.close();
+           throw ioe;
+        }
+    }
+ 
+    /**
+     * Starts the forward server - binds the listening ports of all the listeners
+     * and starts serving. If several acceptor threads are configured, each of them
+     * binds its own listening socket on the port (SO_REUSEPORT) if the platform
+     * supports it, otherwise all of them accept from a single listening socket.
      */
     public void startForwardServer()
     throws Exception
     {
-        // Bind server on given TCP port
-        ServerSocket serverSocket;
+        // Bind server on the listening TCP ports. The server sockets are opened
+        // through channels so the accepted client sockets have channels too. The
+        // ports of the port ranges are all accepted by a single thread.
+        ArrayList<Thread> acceptors = new ArrayList<Thread>();
+        PortRangeAcceptorThread portRangeAcceptor = null;
+        boolean reusePort = false;
+        for (int i=0; i<mListeners.length; i++) {
+           ForwardListener listener = mListeners[i];
+           if (listener.isPortRangeMember()) {
+               if (portRangeAcceptor == null) {
+                   portRangeAcceptor = new PortRangeAcceptorThread(this);
+                   acceptors.add(portRangeAcceptor);
+               }
+               portRangeAcceptor.addListener(listener, bindListeningPort(listener.getListeningPort(), 1)[0]);
+               continue;
+           }
+           ServerSocketChannel[] serverChannels = bindListeningPort(listener.getListeningPort(), mAcceptorThreadsCount);
+           reusePort = (serverChannels.length > 1) && (serverChannels[1] != serverChannels[0]);
+           for (int j=0; j<serverChannels.length; j++)
+               acceptors.add(new AcceptorThread(this, listener, serverChannels[j], acceptors.size()));
+        }
+ 
+        if (mUseNioEngine) {
+           // Start the reactor threads
+           mReactors = new ForwardReactor[mReactorThreadsCount];
+           for (int i=0; i<mReactors.length; i++) {
+               mReactors[i] = new ForwardReactor(this, i);
+               mReactors[i].setDaemon(true);
+               mReactors[i].start();
+           }
+        }
+ 
+        logStartupInfo();
+        if (mUseNioEngine)
+           log("NIO forwarding engine is running " + mReactors.length + " reactor thread(s).");
+        if (mAcceptorThreadsCount > 1 && acceptors.size() > ((portRangeAcceptor != null) ? 1 : 0))
+           log("Accepting clients by " + mAcceptorThreadsCount + " threads per listening port" +
+               (reusePort ? " on separate SO_REUSEPORT sockets." : " on a shared socket (SO_REUSEPORT is not supported)."));
+        if (portRangeAcceptor != null)
+           log("Accepting clients on " + portRangeAcceptor.getPortsCount() + " port(s) of port ranges by a single thread.");
+ 
+        // Accept client connections and process them until stopped
+        for (int i=0; i<acceptors.size(); i++)
+           acceptors.get(i).start();
+        for (int i=0; i<acceptors.size(); i++)
+           acceptors.get(i).join();
+        throw new Exception("Unexpected error. All acceptor threads have stopped.");
+    }
+ 
+    /**
+     * Binds a listening socket channel on given port for each of given number of
+     * acceptor threads (SO_REUSEPORT) or a single channel shared by all of them if
+     * the platform does not support SO_REUSEPORT.
+     * @return the channels for the acceptor threads
+     */
+    private ServerSocketChannel[] bindListeningPort(int aPort, int aAcceptorThreadsCount)
+    throws IOException
+    {
+        ServerSocketChannel[] serverChannels = new ServerSocketChannel[aAcceptorThreadsCount];
+        boolean reusePort = false;
         try {
-           serverSocket = new ServerSocket(mListeningTcpPort);
+           for (int i=0; i<serverChannels.length; i++) {
+               if (i > 0 && !reusePort) {
+                   serverChannels[i] = serverChannels[0];
+                   continue;
+               }
+               serverChannels[i] = ServerSocketChannel.open();
+               if (aAcceptorThreadsCount > 1 &&
+                       serverChannels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                   serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                   reusePort = true;
+               }
+               serverChannels[i].bind(new InetSocketAddress(aPort));
+           }
         } catch (IOException ioe) {
-           throw new IOException("Unable to bind to port " + mListeningTcpPort);
+           throw new IOException("Unable to bind to port " + aPort);
         }
+        return serverChannels;
+    }
  
-        log("Nakov Forward Server started on TCP port " + mListeningTcpPort + ".");
-        log("All TCP connections to " + InetAddress.getLocalHost().getHostAddress() + 
-			":" + mListeningTcpPort + " will be forwarded to the following servers:");
-        for (int i=0; i<mServersList.length; i++) {
-           log("  " + mServersList[i].host +  ":" + mServersList[i].port);
+    /**
+     * Starts forwarding of a client connection accepted by given listener -
+     * passes it to the next reactor (round robin) if the NIO engine is used or
+     * starts a new client thread otherwise. Called by the acceptor threads.
+     */
+    public void handleAcceptedClient(ForwardListener aListener, SocketChannel aClientChannel)
+    {
+        if (mUseNioEngine) {
+           int reactorIndex = (mNextReactor.getAndIncrement() & Integer.MAX_VALUE) % mReactors.length;
+           mReactors[reactorIndex].addClient(aListener, aClientChannel);
+        } else {
+           ForwardServerClientThread forwardThread =
+               new ForwardServerClientThread(this, aListener, aClientChannel.socket());
+           startThread(forwardThread);
         }
-        log("Load balancing algorithm is " + (mUseLoadBalancingAlgorithm ? "ENABLED." : "DISABLED."));
+    }
  
-        // Accept client connections and process them until stopped
-        while(true) {
-           try {
-               Socket clientSocket = serverSocket.accept();
-               String clientHostPort = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-               log("Accepted client from " + clientHostPort);
-               ForwardServerClientThread forwardThread = new ForwardServerClientThread(this, clientSocket);
-               forwardThread.start();
-           } catch (Exception e) {
-               throw new Exception("Unexpected error.\n" + e.toString());
+    /**
+     * Reads the health check specified by the HealthCheckSend, HealthCheckExpect
+     * and HealthCheckExpectRegex properties followed by given suffix.
+     * @return the health check or null if none of these properties is specified
+     */
+    private HealthCheck readHealthCheck(Properties aProps, String aSuffix)
+    throws Exception
+    {
+        String send = aProps.getProperty("HealthCheckSend" + aSuffix);
+        String expect = aProps.getProperty("HealthCheckExpect" + aSuffix);
+        String expectRegex = aProps.getProperty("HealthCheckExpectRegex" + aSuffix);
+        if (send == null && expect == null && expectRegex == null)
+           return null;
+        try {
+           return new HealthCheck(send, expect, expectRegex);
+        } catch (Exception e) {
+           throw new Exception("Invalid health check" + aSuffix + " : " + e.getMessage());
+        }
+    }
+ 
+    /**
+     * Logs the listening ports, the destination servers and the load balancing
+     * mode of all the listeners. A port range is logged at once by its first port.
+     */
+    private void logStartupInfo()
+    throws IOException
+    {
+        for (int i=0; i<mListeners.length; i++) {
+           ForwardListener listener = mListeners[i];
+           ServerDescription[] servers = listener.getServersList();
+           if (listener.isPortRangeMember()) {
+               if (i > 0 && listener.getSettingsName().equals(mListeners[i-1].getSettingsName()))
+                   continue;
+               int lastPort = listener.getListeningPort();
+               for (int j=i+1; j<mListeners.length && mListeners[j].getSettingsName().equals(listener.getSettingsName()); j++)
+                   lastPort = mListeners[j].getListeningPort();
+               log("Nakov Forward Server started on TCP ports " + listener.getListeningPort() + "-" + lastPort +
+                   " (listener " + listener.getSettingsName() + ").");
+               log("All TCP connections to " + InetAddress.getLocalHost().getHostAddress() + ":" +
+                   listener.getListeningPort() + "-" + lastPort + " will be forwarded to the following servers:");
+               for (int j=0; j<servers.length; j++) {
+                   log("  " + servers[j].host + ":" + servers[j].port + "-" + (servers[j].port + lastPort -
+                       listener.getListeningPort()) + "  (weight " + servers[j].weight +
+                       (servers[j].maxConnections > 0 ? ", max " + servers[j].maxConnections + " connections" : "") + ")");
+               }
+           } else {
+               log("Nakov Forward Server started on TCP port " + listener.getListeningPort() +
+                   (mListeners.length > 1 ? " (listener " + listener.getName() + ")." : "."));
+               log("All TCP connections to " + InetAddress.getLocalHost().getHostAddress() +
+                   ":" + listener.getListeningPort() + " will be forwarded to the following servers:");
+               for (int j=0; j<servers.length; j++) {
+                   log("  " + servers[j].host +  ":" + servers[j].port + "  (weight " + servers[j].weight +
+                       (servers[j].maxConnections > 0 ? ", max " + servers[j].maxConnections + " connections" : "") + ")");
+               }
            }
+           log("Load balancing algorithm is " + (listener.isLoadBalancingEnabled() ? "ENABLED" : "DISABLED") +
+               " (" + listener.getLoadBalancer().getAlgorithmName() + ").");
         }
     }
  
@@ -259,7 +1416,11 @@ public class NakovForwardServer
         NakovForwardServer srv = new NakovForwardServer();
         try {
            srv.readSettings();
+           srv.initVirtualThreads();
            srv.startCheckAliveThread();
+           srv.startBackendPoolFillerThread();
+           srv.startSettingsWatcherThread();
+           srv.startAdminServer();
            srv.startForwardServer();
         } catch (Exception e) {
            e.printStackTrace();
@@ -0,0 +1,537 @@
+/**
+ * NioForwardSession is the NIO engine counterpart of ForwardServerClientThread
+ * and its two ForwardThreads. It connects a client to a server from the server
+ * pool without blocking and then forwards the data in both directions on the
+ * reactor thread that owns it. When one of the connections is broken, both
+ * connections are closed exactly as ForwardServerClientThread does it. When all
+ * the alive servers are busy, the session waits in the admission queue without
+ * blocking the reactor.
+ */
+ 
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+ 
+public class NioForwardSession implements AdmissionQueue.Waiter
+{
+    private NakovForwardServer mNakovForwardServer = null;
+    private ForwardListener mListener = null;
+    private NakovForwardServer.ServerDescription mServer = null;
+    private ArrayList<NakovForwardServer.ServerDescription> mTriedServers =
+        new ArrayList<NakovForwardServer.ServerDescription>();
+    private ForwardReactor mReactor = null;
+    private Selector mSelector = null;
+    private BufferPool.LocalCache mBufferCache = null;
+    private SocketChannel mClientChannel = null;
+    private SocketChannel mServerChannel = null;
+    private SelectionKey mClientKey = null;
+    private SelectionKey mServerKey = null;
+    private Direction mClientToServer = null;
+    private Direction mServerToClient = null;
+    private boolean mBothConnectionsAreAlive = false;
+    private String mClientHostPort;
+    private String mServerHostPort;
+    private long mConnectDeadline = 0;
+    private long mConnectStartNanos = 0;
+    private long mConnectedNanos = 0;
+    private long mFirstRequestNanos = 0;
+    private boolean mServerReserved = false;
+    private long mAdmissionDeadline = 0;
+    private boolean mWaitingForSlot = false;
+ 
+    /**
+     * Direction forwards the data read from a source channel to a destination
+     * channel through a buffer. When the destination can not accept all the data,
+     * reading from the source is suspended until the buffer is flushed. The buffer
+     * is taken from the pool only while it holds data, so idle sessions hold none,
+     * and its size is adapted to the traffic by an AdaptiveBufferSizer.
+     */
+    private class Direction
+    {
+        private ByteBuffer mBuffer = null;
+        private AdaptiveBufferSizer mBufferSizer = mNakovForwardServer.createBufferSizer();
+        private SocketChannel mSource;
+        private SocketChannel mDestination;
+        private SelectionKey mSourceKey;
+        private SelectionKey mDestinationKey;
+        private boolean mSourceFinished = false;
+        private boolean mDataReceived = false;
+        private boolean mSourceFailed = false;
+        private boolean mDestinationFailed = false;
+ 
+        Direction(SocketChannel aSource, SelectionKey aSourceKey,
+                SocketChannel aDestination, SelectionKey aDestinationKey)
+        {
+            mSource = aSource;
+            mSourceKey = aSourceKey;
+            mDestination = aDestination;
+            mDestinationKey = aDestinationKey;
+        }
+ 
+        /**
+         * Reads the available data from the source and writes as much of it as
+         * possible to the destination
+         */
+        void onReadable() throws IOException
+        {
+            if (mBuffer == null)
+               mBuffer = mBufferCache.acquire(mBufferSizer.getSize());
+            int freeSpace = mBuffer.remaining();
+            int bytesRead;
+            try {
+               bytesRead = mSource.read(mBuffer);
+            } catch (IOException ioe) {
+               mSourceFailed = true;
+               throw ioe;
+            }
+            if (bytesRead > 0) {
+               mBufferSizer.record(bytesRead, freeSpace);
+               dataReceived(this, bytesRead);
+               if (!mDataReceived) {
+                   mDataReceived = true;
+                   firstDataReceived(this);
+               }
+            }
+            if (bytesRead == -1) {
+               // End of stream is reached --> stop after the buffered data is sent
+               mSourceFinished = true;
+               removeInterest(mSourceKey, SelectionKey.OP_READ);
+            }
+            flush();
+        }
+ 
+        /**
+         * Writes the buffered data to the destination when it becomes writable
+         */
+        void onWritable() throws IOException
+        {
+            if (mBuffer != null)
+               flush();
+        }
+ 
+        private void flush() throws IOException
+        {
+            mBuffer.flip();
+            try {
+               mDestination.write(mBuffer);
+            } catch (IOException ioe) {
+               mDestinationFailed = true;
+               throw ioe;
+            }
+            mBuffer.compact();
+            if (mBuffer.position() > 0) {
+               // The destination is slow --> wait until it is writable again
+               addInterest(mDestinationKey, SelectionKey.OP_WRITE);
+               if (!mBuffer.hasRemaining())
+                   removeInterest(mSourceKey, SelectionKey.OP_READ);
+            } else if (mSourceFinished) {
+               connectionBroken();
+            } else {
+               releaseBuffer();
+               removeInterest(mDestinationKey, SelectionKey.OP_WRITE);
+               addInterest(mSourceKey, SelectionKey.OP_READ);
+            }
+        }
+ 
+        /**
+         * Returns the buffer of this direction to the pool
+         */
+        void releaseBuffer()
+        {
+            if (mBuffer != null) {
+               mBufferCache.release(mBuffer);
+               mBuffer = null;
+            }
+        }
+    }
+ 
+    /**
+     * Creates a forward session for a client accepted by given listener. The
+     * session is served by given reactor and should be started from its thread.
+     */
+    public NioForwardSession(NakovForwardServer aNakovForwardServer, ForwardListener aListener,
+            ForwardReactor aReactor, SocketChannel aClientChannel)
+    {
+        mNakovForwardServer = aNakovForwardServer;
+        mListener = aListener;
+        mReactor = aReactor;
+        mSelector = aReactor.getSelector();
+        mBufferCache = aReactor.getBufferCache();
+        mClientChannel = aClientChannel;
+    }
+ 
+    /**
+     * Starts connecting to the least loaded alive server. If all the servers
+     * are down, closes the client connection. If other clients are waiting for
+     * a free connection slot, waits behind them.
+     */
+    public void start()
+    {
+        Socket clientSocket = mClientChannel.socket();
+        mClientHostPort = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+        mNakovForwardServer.log("Accepted client from " + mClientHostPort);
+        mListener.getMetrics().clientAccepted();
+        try {
+           mClientChannel.configureBlocking(false);
+        } catch (IOException ioe) {
+           try { mClientChannel.close(); } catch (IOException e) {}
+           return;
+        }
+        AdmissionQueue admissionQueue = mListener.getAdmissionQueue();
+        if (admissionQueue != null && !admissionQueue.isEmpty())
+           waitForFreeSlot();
+        else
+           connectToNextServer();
+    }
+ 
+    /**
+     * Takes a pooled connection or starts a non-blocking connect to some of the
+     * servers in the destination servers list. If connecting to some alive server fails, its failure is
+     * reported and the next alive server not tried yet is tried (the same way as
+     * ForwardServerClientThread.createServerSocket() does it). If all the alive
+     * servers are busy, waits for a free connection slot.
+     */
+    private void connectToNextServer()
+    {
+        while (true) {
+           mServer = mListener.reserveServer(mClientChannel.socket().getInetAddress(), mTriedServers);
+           if (mServer == null) {  // If all the servers are down or busy
+               waitForFreeSlot();
+               return;
+           }
+           if (connectToReservedServer())
+               return;
+        }
+    }
+ 
+    /**
+     * Takes a pooled connection or starts a non-blocking connect to the reserved
+     * server. If this fails, the failure of the server is reported.
+     * @return false if connecting to the server has failed
+     */
+    private boolean connectToReservedServer()
+    {
+        mServerReserved = true;
+        boolean connected;
+        try {
+           mServerChannel = mNakovForwardServer.takePooledConnection(mServer);
+           if (mServerChannel != null) {
+               // Use a pre-established connection from the server's pool
+               mServerChannel.configureBlocking(false);
+               mConnectStartNanos = 0;
+               connected = true;
+           } else {
+               mServerChannel = SocketChannel.open();
+               mServerChannel.configureBlocking(false);
+               mConnectStartNanos = System.nanoTime();
+               connected = mServerChannel.connect(mServer.address);
+           }
+           mServerKey = mServerChannel.register(mSelector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        } catch (IOException ioe) {
+           connectToReservedServerFailed();
+           return false;
+        } catch (UnresolvedAddressException uae) {
+           // The host name of the server has never been resolved
+           connectToReservedServerFailed();
+           return false;
+        }
+        if (connected) {
+           serverConnected();
+        } else {
+           mConnectDeadline = System.currentTimeMillis() + mNakovForwardServer.getConnectTimeoutMs();
+           mReactor.addWaitingSession(this);
+        }
+        return true;
+    }
+ 
+    /**
+     * Closes the channel to the reserved server whose connect has failed to start
+     * and reports the failure of the server
+     */
+    private void connectToReservedServerFailed()
+    {
+        if (mServerChannel != null)
+           try { mServerChannel.close(); } catch (IOException e) {}
+        releaseServer();
+        mListener.getMetrics().connectFailed();
+        mServer.metrics.connectFailed();
+        mNakovForwardServer.reportServerFailure(mServer);
+        mTriedServers.add(mServer);
+    }
+ 
+    /**
+     * Queues this session in the admission queue until some connection slot is
+     * released or the admission deadline passes. If all the servers are down or
+     * the queue is full, closes the client connection.
+     */
+    private void waitForFreeSlot()
+    {
+        AdmissionQueue admissionQueue = mListener.getAdmissionQueue();
+        if (admissionQueue == null || !mListener.isAnyServerAlive(mTriedServers)) {
+           reject(". All the servers are down.");
+           return;
+        }
+        long now = System.currentTimeMillis();
+        if (mAdmissionDeadline == 0)
+           mAdmissionDeadline = now + admissionQueue.getTimeoutMs();
+        if (now >= mAdmissionDeadline || !admissionQueue.add(this)) {
+           reject(". All the servers are busy.");
+           return;
+        }
+        mWaitingForSlot = true;
+        mReactor.addWaitingSession(this);
+ 
+        // Some slot could be released before the session was queued
+        mServer = mListener.reserveServer(mClientChannel.socket().getInetAddress(), mTriedServers);
+        if (mServer != null) {
+           stopWaitingForSlot();
+           admissionQueue.remove(this);
+           if (!connectToReservedServer())
+               connectToNextServer();
+        }
+    }
+ 
+    /**
+     * @return the time this session is rejected at if not admitted
+     */
+    public long getDeadline()
+    {
+        return mAdmissionDeadline;
+    }
+ 
+    /**
+     * Called by the admission queue (on any thread) when a connection slot is
+     * released. Retries the connecting on the reactor thread. If the session does
+     * not wait anymore, the notification is passed to the next waiting client.
+     */
+    public void slotAvailable()
+    {
+        mReactor.execute(new Runnable() {
+           public void run()
+           {
+               if (mWaitingForSlot) {
+                   stopWaitingForSlot();
+                   connectToNextServer();
+               } else {
+                   mListener.getAdmissionQueue().slotReleased();
+               }
+           }
+        });
+    }
+ 
+    private void stopWaitingForSlot()
+    {
+        mWaitingForSlot = false;
+        mReactor.removeWaitingSession(this);
+    }
+ 
+    /**
+     * Closes the client connection that can not be forwarded for given reason
+     */
+    private void reject(String aReason)
+    {
+        System.out.println("Can not establish connection for client " + mClientHostPort + aReason);
+        mListener.getMetrics().clientRejected();
+        try { mClientChannel.close(); } catch (IOException e) {}
+    }
+ 
+    /**
+     * Starts forwarding of the data between the client and the connected server
+     */
+    private void serverConnected()
+    {
+        mConnectedNanos = System.nanoTime();
+        mNakovForwardServer.reportServerSuccess(mServer);
+        mServerHostPort = mServer.host + ":" + mServer.port;
+        try {
+           mClientKey = mClientChannel.register(mSelector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException cce) {
+           // The client has gone while connecting to the server
+           releaseServer();
+           try { mServerChannel.close(); } catch (IOException e) {}
+           return;
+        }
+        mServerKey.interestOps(SelectionKey.OP_READ);
+        long connectNanos = (mConnectStartNanos != 0) ? mConnectedNanos - mConnectStartNanos : -1;
+        mListener.getMetrics().connected(connectNanos);
+        mServer.metrics.connected(connectNanos);
+        mClientToServer = new Direction(mClientChannel, mClientKey, mServerChannel, mServerKey);
+        mServerToClient = new Direction(mServerChannel, mServerKey, mClientChannel, mClientKey);
+        mBothConnectionsAreAlive = true;
+        mNakovForwardServer.log("TCP Forwarding  " + mClientHostPort + " <--> " + mServerHostPort + "  started.");
+    }
+ 
+    /**
+     * Called when the first data is received in given direction. The time from
+     * the first client data (or from the connect if the server speaks first) to
+     * the first server data is recorded as response latency (first byte latency)
+     * of the server.
+     */
+    private void firstDataReceived(Direction aDirection)
+    {
+        long now = System.nanoTime();
+        if (aDirection == mServerToClient) {
+           long requestNanos = (mFirstRequestNanos != 0) ? mFirstRequestNanos : mConnectedNanos;
+           mServer.responseLatency.record(now - requestNanos);
+           mListener.getMetrics().firstByteReceived(now - requestNanos);
+           mServer.metrics.firstByteReceived(now - requestNanos);
+        } else {
+           mFirstRequestNanos = now;
+        }
+    }
+ 
+    /**
+     * Counts given number of bytes received in given direction in the metrics of
+     * the listener and the server
+     */
+    private void dataReceived(Direction aDirection, int aBytes)
+    {
+        if (aDirection == mClientToServer) {
+           mListener.getMetrics().bytesToServer(aBytes);
+           mServer.metrics.bytesToServer(aBytes);
+        } else {
+           mListener.getMetrics().bytesToClient(aBytes);
+           mServer.metrics.bytesToClient(aBytes);
+        }
+    }
+ 
+    /**
+     * Rejects the client if its admission deadline has passed while waiting for
+     * a free connection slot. Fails over to the next server if the connect timeout
+     * has expired while connecting to the current server. Called by the reactor
+     * thread.
+     */
+    public void checkDeadline(long aNow)
+    {
+        if (mWaitingForSlot) {
+           if (aNow >= mAdmissionDeadline) {
+               stopWaitingForSlot();
+               mListener.getAdmissionQueue().remove(this);
+               reject(". All the servers are busy.");
+           }
+           return;
+        }
+        if (aNow < mConnectDeadline)
+           return;
+        mReactor.removeWaitingSession(this);
+        mServer.timedOutConnectsCount.incrementAndGet();
+        mNakovForwardServer.log("Connecting to " + mServer.host + ":" + mServer.port + " timed out after " +
+           mNakovForwardServer.getConnectTimeoutMs() + " ms.");
+        serverConnectFailed();
+    }
+ 
+    /**
+     * Reports the failure of the current server and connects to the next server
+     */
+    private void serverConnectFailed()
+    {
+        mServerKey.cancel();
+        try { mServerChannel.close(); } catch (IOException e) {}
+        releaseServer();
+        mListener.getMetrics().connectFailed();
+        mServer.metrics.connectFailed();
+        mNakovForwardServer.reportServerFailure(mServer);
+        mTriedServers.add(mServer);
+        connectToNextServer();
+    }
+ 
+    /**
+     * Handles a ready event of the client or the server channel. Called by the
+     * reactor thread.
+     */
+    public void handleEvent(SelectionKey aKey) throws IOException
+    {
+        if (aKey == mServerKey && aKey.isConnectable()) {
+           mReactor.removeWaitingSession(this);
+           try {
+               mServerChannel.finishConnect();
+           } catch (IOException ioe) {
+               serverConnectFailed();
+               return;
+           }
+           mServer.connectLatency.record(System.nanoTime() - mConnectStartNanos);
+           serverConnected();
+           return;
+        }
+        if (aKey == mClientKey) {
+           if (aKey.isReadable())
+               mClientToServer.onReadable();
+           if (aKey.isValid() && aKey.isWritable())
+               mServerToClient.onWritable();
+        } else {
+           if (aKey.isReadable())
+               mServerToClient.onReadable();
+           if (aKey.isValid() && aKey.isWritable())
+               mClientToServer.onWritable();
+        }
+    }
+ 
+    /**
+     * connectionBroken() is called when one of the connections (server or client)
+     * is broken (a read/write failure occured or the end of stream is reached).
+     * This method disconnects both server and client sockets and stops forwarding.
+     * The outcome of the session is reported for the outlier detection.
+     */
+    public void connectionBroken()
+    {
+        if (mBothConnectionsAreAlive) {
+           // Closing the channels also cancels their selection keys
+           try { mServerChannel.close(); } catch (IOException e) {}
+           try { mClientChannel.close(); } catch (IOException e) {}
+           mClientToServer.releaseBuffer();
+           mServerToClient.releaseBuffer();
+ 
+           mBothConnectionsAreAlive = false;
+           releaseServer();
+           long durationNanos = System.nanoTime() - mConnectedNanos;
+           mListener.getMetrics().sessionFinished(durationNanos);
+           mServer.metrics.sessionFinished(durationNanos);
+           mNakovForwardServer.reportSessionFinished(mServer,
+               mServerToClient.mSourceFailed || mClientToServer.mDestinationFailed,
+               mServerToClient.mSourceFinished, mClientToServer.mDataReceived, mServerToClient.mDataReceived);
+ 
+           mNakovForwardServer.log("TCP Forwarding  " + mClientHostPort + " <--> " + mServerHostPort + "  stopped.");
+        } else {
+           // Failed before the forwarding has started --> just release the channels
+           mReactor.removeWaitingSession(this);
+           if (mWaitingForSlot) {
+               mWaitingForSlot = false;
+               mListener.getAdmissionQueue().remove(this);
+           }
+           releaseServer();
+           if (mServerChannel != null)
+               try { mServerChannel.close(); } catch (IOException e) {}
+           try { mClientChannel.close(); } catch (IOException e) {}
+        }
+    }
+ 
+    /**
+     * Releases the connection reserved to the current server (if not released yet)
+     */
+    private void releaseServer()
+    {
+        if (mServerReserved) {
+           mListener.releaseServer(mServer);
+           mServerReserved = false;
+        }
+    }
+ 
+    private static void addInterest(SelectionKey aKey, int aOperation)
+    {
+        if (aKey.isValid())
+           aKey.interestOps(aKey.interestOps() | aOperation);
+    }
+ 
+    private static void removeInterest(SelectionKey aKey, int aOperation)
+    {
+        if (aKey.isValid())
+           aKey.interestOps(aKey.interestOps() & ~aOperation);
+    }
+ 
+}
@@ -0,0 +1,107 @@
+/**
+ * OutlierDetector ejects destination servers that fail in live traffic. The end
+ * of each forwarding session is classified as successful or failed (the server
+ * reset the connection, closed it without sending any data or did not answer the
+ * client at all) and recorded in the server's sliding window. When the failure
+ * rate of a server in the window reaches the configured threshold, the server is
+ * ejected (gets no clients) for the ejection time, multiplied by the number of its
+ * recent ejections. No more than the configured percent of the servers of a
+ * listener can be ejected at once, so a failure of all the servers does not
+ * eject all of them.
+ */
+ 
+public class OutlierDetector
+{
+    private static final int MAX_EJECTION_TIME_MULTIPLIER = 10;
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+    private long mWindowMs;
+    private int mMinSessions;
+    private int mFailurePercent;
+    private long mEjectionTimeMs;
+    private int mMaxEjectionPercent;
+ 
+    /**
+     * Creates an outlier detector with given sliding window length, minimal
+     * number of sessions in the window needed for a decision, failure rate
+     * threshold, base ejection time and maximal percent of ejected servers
+     */
+    public OutlierDetector(NakovForwardServer aNakovForwardServer, long aWindowMs, int aMinSessions,
+            int aFailurePercent, long aEjectionTimeMs, int aMaxEjectionPercent)
+    {
+        mNakovForwardServer = aNakovForwardServer;
+        mWindowMs = aWindowMs;
+        mMinSessions = Math.max(1, aMinSessions);
+        mFailurePercent = aFailurePercent;
+        mEjectionTimeMs = aEjectionTimeMs;
+        mMaxEjectionPercent = aMaxEjectionPercent;
+    }
+ 
+    /**
+     * @return the length (in milliseconds) of the sliding window of session outcomes
+     */
+    public long getWindowMs()
+    {
+        return mWindowMs;
+    }
+ 
+    /**
+     * @return true if a session with given outcome indicates a sick server: the
+     * server reset the connection, closed it first without sending any data, or
+     * did not send any data although the client did
+     */
+    public static boolean isFailedSession(boolean aServerReset, boolean aServerClosedFirst,
+            boolean aClientSentData, boolean aServerSentData)
+    {
+        if (aServerReset)
+           return true;
+        return !aServerSentData && (aServerClosedFirst || aClientSentData);
+    }
+ 
+    /**
+     * Records the outcome of a finished session of given server and ejects the
+     * server if its failure rate has reached the threshold
+     */
+    public void sessionFinished(NakovForwardServer.ServerDescription aServer, boolean aFailed)
+    {
+        aServer.sessionStats.record(aFailed);
+        if (!aFailed || !aServer.isAlive)
+           return;
+        int sessions = aServer.sessionStats.getSessionsCount();
+        int failures = aServer.sessionStats.getFailuresCount();
+        if (sessions < mMinSessions || failures * 100 < sessions * mFailurePercent)
+           return;
+        eject(aServer, failures, sessions);
+    }
+ 
+    /**
+     * Ejects given server unless the maximal percent of ejected servers (of the
+     * listener it belongs to) is reached
+     */
+    private synchronized void eject(NakovForwardServer.ServerDescription aServer, int aFailures, int aSessions)
+    {
+        if (aServer.ejectedUntilMillis != 0)
+           return;  // Already ejected
+        NakovForwardServer.ServerDescription[] servers = aServer.listener.getServersList();
+        int ejectedCount = 0;
+        for (int i=0; i<servers.length; i++)
+           if (servers[i].ejectedUntilMillis != 0)
+               ejectedCount++;
+        if ((ejectedCount + 1) * 100 > servers.length * mMaxEjectionPercent)
+           return;
+ 
+        long now = System.currentTimeMillis();
+        if (now - aServer.lastEjectionEndMillis > mWindowMs)
+           aServer.recentEjectionsCount = 0;  // The server has been fine for a while
+        aServer.recentEjectionsCount = Math.min(aServer.recentEjectionsCount + 1, MAX_EJECTION_TIME_MULTIPLIER);
+        long ejectionTimeMs = mEjectionTimeMs * aServer.recentEjectionsCount;
+        synchronized (aServer.health) {
+           aServer.ejectedUntilMillis = now + ejectionTimeMs;
+           aServer.isAlive = false;
+        }
+        aServer.sessionStats.clear();
+        mNakovForwardServer.log("Server " + aServer.host + ":" + aServer.port + " is ejected for " +
+           ejectionTimeMs + " ms (" + aFailures + " of " + aSessions + " sessions failed).");
+    }
+ 
+}
@@ -0,0 +1,133 @@
+/**
+ * PortRangeAcceptorThread accepts client connections on the listening ports of
+ * the port range listeners. A port range can contain thousands of ports, so
+ * instead of a thread per port a single thread waits for clients on all of them
+ * with a selector. Each port is a listener of its own, attached to the selection
+ * key of its server socket channel, and the accepted clients are handed to Nakov
+ * Forward Server together with their listener. When accepting fails (e.g. the
+ * file descriptors are exhausted), the failing ports stop being selected for a
+ * back off that doubles while the accepts keep failing (like in AcceptorThread),
+ * so the pending clients do not make the thread spin.
+ */
+ 
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+ 
+public class PortRangeAcceptorThread extends Thread
+{
+    private NakovForwardServer mNakovForwardServer = null;
+    private Selector mSelector = null;
+    private int mPortsCount = 0;
+    private ArrayList<SelectionKey> mSuspendedKeys = new ArrayList<SelectionKey>();
+    private long mBackoffMs = 0;
+    private long mResumeAcceptingMillis = 0;
+ 
+    /**
+     * Creates an acceptor thread with its own selector
+     */
+    public PortRangeAcceptorThread(NakovForwardServer aNakovForwardServer)
+    throws IOException
+    {
+        super("PortRangeAcceptor");
+        mNakovForwardServer = aNakovForwardServer;
+        mSelector = Selector.open();
+    }
+ 
+    /**
+     * Starts accepting clients on given bound server socket channel of given
+     * listener. Should be called before the thread is started.
+     */
+    public void addListener(ForwardListener aListener, ServerSocketChannel aServerChannel)
+    throws IOException
+    {
+        aServerChannel.configureBlocking(false);
+        aServerChannel.register(mSelector, SelectionKey.OP_ACCEPT, aListener);
+        mPortsCount++;
+    }
+ 
+    /**
+     * @return the number of the ports this thread accepts clients on
+     */
+    public int getPortsCount()
+    {
+        return mPortsCount;
+    }
+ 
+    /**
+     * Waits for clients on all the ports and passes them to the server until
+     * stopped. The ports suspended after a failed accept are selected again when
+     * the back off expires.
+     */
+    public void run()
+    {
+        while (!interrupted()) {
+           try {
+               if (mResumeAcceptingMillis == 0)
+                   mSelector.select();
+               else
+                   mSelector.select(Math.max(1, mResumeAcceptingMillis - System.currentTimeMillis()));
+           } catch (IOException ioe) {
+               System.out.println("Unexpected error in " + getName() + ".\n" + ioe.toString());
+               return;
+           }
+           Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+           while (keys.hasNext()) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               acceptClients(key);
+           }
+           if (mResumeAcceptingMillis != 0 && System.currentTimeMillis() >= mResumeAcceptingMillis)
+               resumeAccepting();
+        }
+    }
+ 
+    /**
+     * Selects again the ports suspended after a failed accept
+     */
+    private void resumeAccepting()
+    {
+        for (int i=0; i<mSuspendedKeys.size(); i++) {
+           SelectionKey key = mSuspendedKeys.get(i);
+           if (key.isValid())
+               key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        mSuspendedKeys.clear();
+        mResumeAcceptingMillis = 0;
+    }
+ 
+    /**
+     * Accepts all the pending clients on the server socket channel of given key.
+     * An accept failure suspends accepting on this port until the current back
+     * off expires only, so a single port can not stop the whole range. A new back
+     * off (doubled if the accepts keep failing) is started and logged only if no
+     * back off is in progress.
+     */
+    private void acceptClients(SelectionKey aKey)
+    {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) aKey.channel();
+        ForwardListener listener = (ForwardListener) aKey.attachment();
+        try {
+           SocketChannel clientChannel;
+           while ((clientChannel = serverChannel.accept()) != null) {
+               mBackoffMs = 0;
+               mNakovForwardServer.handleAcceptedClient(listener, clientChannel);
+           }
+        } catch (IOException ioe) {
+           aKey.interestOps(0);
+           mSuspendedKeys.add(aKey);
+           if (mResumeAcceptingMillis == 0) {
+               mBackoffMs = Math.min(Math.max(2 * mBackoffMs, AcceptorThread.MIN_ACCEPT_BACKOFF_MS),
+                   AcceptorThread.MAX_ACCEPT_BACKOFF_MS);
+               mResumeAcceptingMillis = System.currentTimeMillis() + mBackoffMs;
+               System.out.println("Accepting a client on port " + listener.getListeningPort() + " failed in " +
+                   getName() + ": " + ioe.toString() + ". Retrying in " + mBackoffMs + " ms.");
+           }
+        }
+    }
+ 
+}
@@ -0,0 +1,146 @@
+/**
+ * ServerHealth is the health state machine of a destination server. A healthy
+ * server becomes suspect after a failed connect or check and dead after the
+ * configured number of consecutive failures (fall count). A dead server becomes
+ * recovering after a successful check and healthy again after the configured
+ * number of consecutive successful checks (rise count). Suspect servers still
+ * get clients, dead and recovering servers do not. The checks of a server that
+ * stays dead are backed off exponentially up to a maximal check interval. The
+ * check times are randomly jittered, so the servers are not checked all at once.
+ */
+ 
+import java.util.concurrent.ThreadLocalRandom;
+ 
+public class ServerHealth
+{
+    public static final int HEALTHY = 0;
+    public static final int SUSPECT = 1;
+    public static final int DEAD = 2;
+    public static final int RECOVERING = 3;
+    private static final String[] STATE_NAMES = {"healthy", "suspect", "dead", "recovering"};
+ 
+    private int mRiseCount;
+    private int mFallCount;
+    private long mCheckIntervalMs;
+    private long mMaxCheckIntervalMs;
+    private double mCheckJitter;
+    private volatile int mState = HEALTHY;
+    private volatile int mConsecutiveFailures = 0;
+    private int mConsecutiveSuccesses = 0;
+    private int mFailedChecksWhileDead = 0;
+    private long mNextCheckMillis = 0;
+ 
+    /**
+     * Creates a health state machine of a healthy server with given rise and
+     * fall counts, check interval, maximal (backed off) check interval and check
+     * jitter (the part of the interval the check time randomly varies by). The
+     * first check is scheduled at a random time within the first interval.
+     */
+    public ServerHealth(int aRiseCount, int aFallCount, long aCheckIntervalMs, long aMaxCheckIntervalMs,
+            double aCheckJitter)
+    {
+        mRiseCount = Math.max(1, aRiseCount);
+        mFallCount = Math.max(1, aFallCount);
+        mCheckIntervalMs = aCheckIntervalMs;
+        mMaxCheckIntervalMs = Math.max(aCheckIntervalMs, aMaxCheckIntervalMs);
+        mCheckJitter = Math.min(1.0, Math.max(0.0, aCheckJitter));
+        mNextCheckMillis = System.currentTimeMillis() +
+           (long) (ThreadLocalRandom.current().nextDouble() * aCheckIntervalMs);
+    }
+ 
+    /**
+     * @return the current state (HEALTHY, SUSPECT, DEAD or RECOVERING)
+     */
+    public int getState()
+    {
+        return mState;
+    }
+ 
+    /**
+     * @return the name of the current state
+     */
+    public String getStateName()
+    {
+        return STATE_NAMES[mState];
+    }
+ 
+    /**
+     * @return true if the server in given state should get clients
+     */
+    public static boolean isServing(int aState)
+    {
+        return aState == HEALTHY || aState == SUSPECT;
+    }
+ 
+    /**
+     * @return true if the server should be checked at given time
+     */
+    public synchronized boolean isCheckDue(long aNow)
+    {
+        return aNow >= mNextCheckMillis;
+    }
+ 
+    /**
+     * @return the time (in milliseconds, as System.currentTimeMillis()) of the
+     * next check of the server
+     */
+    public synchronized long getNextCheckMillis()
+    {
+        return mNextCheckMillis;
+    }
+ 
+    /**
+     * Records a failed connect or check of the server.
+     * @return the new state
+     */
+    public synchronized int recordFailure()
+    {
+        mConsecutiveSuccesses = 0;
+        mConsecutiveFailures++;
+        if (mState == DEAD) {
+           mFailedChecksWhileDead++;
+        } else if (mState == RECOVERING || mConsecutiveFailures >= mFallCount) {
+           mState = DEAD;
+           mFailedChecksWhileDead = 0;
+        } else {
+           mState = SUSPECT;
+        }
+        return mState;
+    }
+ 
+    /**
+     * Records a successful connect or check of the server.
+     * @return the new state
+     */
+    public int recordSuccess()
+    {
+        if (mState == HEALTHY && mConsecutiveFailures == 0)
+           return HEALTHY;  // Nothing to change (the common case)
+        synchronized (this) {
+           mConsecutiveFailures = 0;
+           mConsecutiveSuccesses++;
+           if (mState == SUSPECT || mConsecutiveSuccesses >= mRiseCount)
+               mState = HEALTHY;
+           else if (mState == DEAD)
+               mState = RECOVERING;
+           return mState;
+        }
+    }
+ 
+    /**
+     * Schedules the next check of the server after its check is done. While the
+     * server stays dead, the check interval is doubled after each failed check.
+     * The interval is randomly lengthened or shortened by the check jitter.
+     */
+    public synchronized void scheduleNextCheck()
+    {
+        long interval = mCheckIntervalMs;
+        if (mState == DEAD) {
+           int doublings = Math.min(mFailedChecksWhileDead, 30);
+           interval = Math.min(mMaxCheckIntervalMs, mCheckIntervalMs << doublings);
+        }
+        double jitter = mCheckJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        mNextCheckMillis = System.currentTimeMillis() + (long) (interval * (1 + jitter));
+    }
+ 
+}
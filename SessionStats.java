@@ -0,0 +1,94 @@
+/**
+ * SessionStats counts the finished and the failed forwarding sessions of a
+ * destination server in a sliding time window. The window is divided into a
+ * fixed number of buckets, so old sessions expire bucket by bucket and the
+ * counting needs no per-session memory.
+ */
+ 
+public class SessionStats
+{
+    private static final int BUCKETS_COUNT = 10;
+ 
+    private long mBucketWidthMs;
+    private long[] mBucketSlots = new long[BUCKETS_COUNT];
+    private int[] mSessions = new int[BUCKETS_COUNT];
+    private int[] mFailures = new int[BUCKETS_COUNT];
+ 
+    /**
+     * Creates session statistics for a sliding window with given length
+     */
+    public SessionStats(long aWindowMs)
+    {
+        mBucketWidthMs = Math.max(1, aWindowMs / BUCKETS_COUNT);
+        for (int i=0; i<BUCKETS_COUNT; i++)
+           mBucketSlots[i] = -1;
+    }
+ 
+    /**
+     * Records a finished session
+     */
+    public synchronized void record(boolean aFailed)
+    {
+        int bucket = getCurrentBucket();
+        mSessions[bucket]++;
+        if (aFailed)
+           mFailures[bucket]++;
+    }
+ 
+    /**
+     * @return the number of sessions finished in the window
+     */
+    public synchronized int getSessionsCount()
+    {
+        return sum(mSessions);
+    }
+ 
+    /**
+     * @return the number of failed sessions in the window
+     */
+    public synchronized int getFailuresCount()
+    {
+        return sum(mFailures);
+    }
+ 
+    /**
+     * Forgets all the recorded sessions
+     */
+    public synchronized void clear()
+    {
+        for (int i=0; i<BUCKETS_COUNT; i++) {
+           mSessions[i] = 0;
+           mFailures[i] = 0;
+        }
+    }
+ 
+    /**
+     * @return the index of the bucket of the current time. The bucket is cleared
+     * if it holds sessions from an expired time slot.
+     */
+    private int getCurrentBucket()
+    {
+        long slot = System.currentTimeMillis() / mBucketWidthMs;
+        int bucket = (int) (slot % BUCKETS_COUNT);
+        if (mBucketSlots[bucket] != slot) {
+           mBucketSlots[bucket] = slot;
+           mSessions[bucket] = 0;
+           mFailures[bucket] = 0;
+        }
+        return bucket;
+    }
+ 
+    /**
+     * @return the sum of given counters in the buckets that are inside the window
+     */
+    private int sum(int[] aCounters)
+    {
+        long currentSlot = System.currentTimeMillis() / mBucketWidthMs;
+        int sum = 0;
+        for (int i=0; i<BUCKETS_COUNT; i++)
+           if (mBucketSlots[i] > currentSlot - BUCKETS_COUNT)
+               sum += aCounters[i];
+        return sum;
+    }
+ 
+}
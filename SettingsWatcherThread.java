@@ -0,0 +1,83 @@
+/**
+ * SettingsWatcherThread watches the Nakov Forward Server configuration file for
+ * changes (through a WatchService on its directory) and asks the server to reload
+ * its settings when the file is created or modified. Several changes made in a
+ * short time (e.g. by an editor saving the file) cause a single reload.
+ */
+ 
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+ 
+public class SettingsWatcherThread extends Thread
+{
+    private static final long SETTLE_TIME_MS = 200;
+ 
+    private NakovForwardServer mNakovForwardServer = null;
+ 
+    /**
+     * Creates a settings watcher thread. NakovForwardServer object is needed
+     * for reloading the settings.
+     */
+    public SettingsWatcherThread(NakovForwardServer aNakovForwardServer)
+    {
+        super("SettingsWatcher");
+        mNakovForwardServer = aNakovForwardServer;
+    }
+ 
+    /**
+     * Until stopped waits for changes of the configuration file and reloads the
+     * settings after each change
+     */
+    public void run()
+    {
+        Path settingsFile = Paths.get(NakovForwardServer.SETTINGS_FILE_NAME).toAbsolutePath();
+        WatchService watchService = null;
+        try {
+           watchService = FileSystems.getDefault().newWatchService();
+           settingsFile.getParent().register(watchService,
+               StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+           while (!interrupted()) {
+               WatchKey key = watchService.take();
+               boolean changed = isSettingsFileChanged(key, settingsFile);
+               if (!changed)
+                   continue;
+ 
+               // Wait for the file to be completely written and skip the following events
+               Thread.sleep(SETTLE_TIME_MS);
+               while ((key = watchService.poll()) != null)
+                   isSettingsFileChanged(key, settingsFile);
+               mNakovForwardServer.reloadSettings();
+           }
+        } catch (InterruptedException ie) {
+           // The thread is stopped
+        } catch (IOException ioe) {
+           ioe.printStackTrace();
+        } finally {
+           if (watchService != null)
+               try { watchService.close(); } catch (IOException e) {}
+        }
+    }
+ 
+    /**
+     * Consumes the events of given watch key and resets the key.
+     * @return true if some of the events is about the configuration file
+     */
+    private static boolean isSettingsFileChanged(WatchKey aKey, Path aSettingsFile)
+    {
+        boolean changed = false;
+        for (WatchEvent<?> event : aKey.pollEvents()) {
+           if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                   aSettingsFile.getFileName().equals(event.context()))
+               changed = true;
+        }
+        aKey.reset();
+        return changed;
+    }
+ 
+}